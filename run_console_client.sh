@@ -5,4 +5,4 @@
 
 CLASS_PATH=./bin
 
-java -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.client.ConsoleClient $1 $2
+java ${JAVA_OPTS} -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.client.ConsoleClient $1 $2
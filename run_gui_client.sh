@@ -4,4 +4,4 @@
 #
 
 CLASS_PATH=./bin
-java -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.client.GuiClient $1 $2
+java ${JAVA_OPTS} -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.client.GuiClient $1 $2
@@ -9,6 +9,6 @@ sleep 0.1
 cd ${CLASS_PATH}
 rmiregistry &
 cd - > /dev/null
-java -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.server.Server $1 $2
+java ${JAVA_OPTS} -Djava.security.policy=./security.policy -Djava.rmi.server.codebase=file:${CLASS_PATH} -cp ${CLASS_PATH} enshare.server.Server $1 $2
 killall rmiregistry
 sleep 0.1
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Base commune des lignes d'un document: rattachement au document
+ * propriétaire et codage du contenu dans la forme sérialisée
+ * <p>
+ * Les sous-classes ne choisissent que la représentation du contenu.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public abstract class AbstractLine implements LineInterface, Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Document contenant la ligne, prévenu de chaque changement de contenu
+     * (null si la ligne n'appartient à aucun document)
+     */
+    transient Document owner;
+
+    /**
+     * Dernière position connue de la ligne dans son document, vérifiée avant
+     * usage (les insertions et suppressions de lignes la décalent)
+     */
+    transient int index;
+
+    @Override
+    public void setText(String _text) {
+        String oldText = replaceText(_text);
+        if (owner != null) {
+            owner.lineChanged(this, oldText);
+        }
+    }
+
+    /**
+     * Change le contenu de la ligne sans prévenir le document propriétaire
+     * @param _text Nouveau contenu
+     * @return Ancien contenu
+     */
+    abstract String replaceText(String _text);
+
+    /**
+     * Retourne le contenu de la ligne sous une forme immuable, partagée avec
+     * la ligne plutôt que recopiée (voir {@link PersistentLineTree})
+     * @return Chaîne de caractères, ou octets Latin-1 d'une
+     * {@link CompactLine}
+     */
+    Object content() {
+        return getText();
+    }
+
+    /**
+     * Écrit le contenu de la ligne sous la forme lue par
+     * {@link #readText(DataInput)}
+     * @param out Flux de sortie
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    void writeContent(DataOutput out) throws IOException {
+        writeText(out, getText());
+    }
+
+    /**
+     * Compare le contenu de deux lignes, quelle que soit leur représentation
+     * @param obj Objet comparé
+     * @return Vrai si <code>obj</code> est une ligne de même contenu
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof AbstractLine)) {
+            return false;
+        }
+        return getText().equals(((AbstractLine) obj).getText());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: égal au code de hachage du contenu.</p>
+     */
+    @Override
+    public int hashCode() {
+        return getText().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+
+    /**
+     * Écrit un contenu de ligne sous la forme de sa longueur en octets suivie
+     * de son codage UTF-8
+     * @param out Flux de sortie
+     * @param text Contenu de la ligne
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    static void writeText(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Lit le codage UTF-8 d'un contenu de ligne écrit par
+     * {@link #writeText(DataOutput, String)}
+     * @param in Flux d'entrée
+     * @return Octets du contenu
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new InvalidObjectException("Longueur de ligne invalide: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Lit un contenu de ligne écrit par {@link #writeText(DataOutput, String)}
+     * @param in Flux d'entrée
+     * @return Contenu de la ligne
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    static String readText(DataInput in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+}
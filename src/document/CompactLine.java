@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Ligne dont le contenu est conservé sous forme d'octets, la chaîne de
+ * caractères n'étant créée qu'à la demande par {@link #getText()}
+ * <p>
+ * Un contenu dont tous les caractères tiennent sur un octet est codé en
+ * Latin-1, sinon en UTF-8. Les deux codages coïncident pour l'ASCII, et seul
+ * le Latin-1 compte autant d'octets que de caractères: le codage se déduit
+ * donc de la longueur, sans champ supplémentaire.</p>
+ * <p>
+ * Remarque: aucune chaîne n'étant conservée, ces lignes ne passent pas par
+ * {@link LinePool}. La longueur et la forme sérialisée d'un contenu ASCII sont
+ * calculées directement sur les octets.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class CompactLine extends AbstractLine {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Tableau vide partagé par les lignes vierges
+     */
+    static private final byte[] EMPTY = new byte[0];
+
+    /**
+     * Contenu de la ligne, en Latin-1 si sa taille vaut {@link #length}, en
+     * UTF-8 sinon
+     */
+    private byte[] bytes;
+
+    /**
+     * Nombre de caractères du contenu
+     */
+    private int length;
+
+    /**
+     * Constructeur par défaut, création d'une ligne vierge
+     */
+    public CompactLine() {
+        bytes = EMPTY;
+        length = 0;
+    }
+
+    /**
+     * Constructeur, création d'une ligne à partir d'un contenu initial
+     * @param _text Contenu initial
+     */
+    public CompactLine(String _text) {
+        encode(_text);
+    }
+
+    /**
+     * Crée une ligne à partir du codage UTF-8 de son contenu, sans passer par
+     * une chaîne lorsque le contenu est en ASCII
+     * @param utf8 Octets du contenu (le tableau est conservé tel quel)
+     * @return Nouvelle ligne
+     */
+    static CompactLine fromUtf8(byte[] utf8) {
+        CompactLine l = new CompactLine();
+        l.decode(utf8);
+        return l;
+    }
+
+    /**
+     * Remplace le contenu par le codage d'une chaîne
+     */
+    private void encode(String text) {
+        length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) > 0xFF) {
+                bytes = text.getBytes(StandardCharsets.UTF_8);
+                return;
+            }
+        }
+        bytes = (length == 0) ? EMPTY : text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Remplace le contenu par des octets UTF-8
+     */
+    private void decode(byte[] utf8) {
+        if (isAscii(utf8)) {
+            bytes = (utf8.length == 0) ? EMPTY : utf8;
+            length = utf8.length;
+        } else {
+            // Rare: passer par une chaîne valide aussi le codage reçu
+            encode(new String(utf8, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static boolean isAscii(byte[] b) {
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Teste si le contenu est codé en Latin-1
+     */
+    private boolean isLatin1() {
+        return bytes.length == length;
+    }
+
+    @Override
+    String replaceText(String _text) {
+        String oldText = getText();
+        encode(_text);
+        return oldText;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: un contenu Latin-1 est partagé sous forme d'octets, le
+     * tableau n'étant jamais modifié (un nouveau contenu est un nouveau
+     * tableau).</p>
+     */
+    @Override
+    Object content() {
+        return isLatin1() ? bytes : getText();
+    }
+
+    @Override
+    public String getText() {
+        return new String(bytes, isLatin1() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof CompactLine) {
+            // Le codage étant déterminé par le contenu, les octets suffisent
+            CompactLine other = (CompactLine) obj;
+            return length == other.length && Arrays.equals(bytes, other.bytes);
+        }
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        if (!isLatin1()) {
+            return super.hashCode();
+        }
+        // Même valeur que String.hashCode(), sans créer la chaîne
+        int h = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            h = 31 * h + (bytes[i] & 0xFF);
+        }
+        return h;
+    }
+
+    @Override
+    void writeContent(DataOutput out) throws IOException {
+        if (!isLatin1() || isAscii(bytes)) {
+            // Octets déjà en UTF-8
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            writeText(out, getText());
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeContent(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        decode(readBytes(in));
+    }
+
+}
@@ -15,16 +15,42 @@
  */
 package document;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 
 /**
  * Classe implémentant l'interface d'un document
+ * <p>
+ * Remarque: la forme sérialisée est écrite à la main (voir
+ * {@link #writeExternal(ObjectOutput)}) : le nombre de lignes puis chaque
+ * ligne en UTF-8 précédée de sa longueur, sans descripteur de classe par
+ * ligne.</p>
+ * <p>
+ * Cette forme n'est pas compatible avec celle des versions précédentes
+ * (sérialisation par défaut): un flux <code>Serializable</code> ne peut pas
+ * être lu par une classe <code>Externalizable</code>, quel que soit
+ * <code>serialVersionUID</code>. Le numéro de version a donc été changé, pour
+ * que l'erreur soit explicite ({@link java.io.InvalidClassException}); les
+ * évolutions suivantes du format passent par l'octet de version
+ * ({@link #FORMAT}).</p>
  *
  * @author Gwénolé Lecorvé
  */
-public class Document implements DocumentInterface {
+public class Document implements DocumentInterface, Externalizable {
+
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Version du format de sérialisation, écrite en tête de la forme sérialisée
+     */
+    static protected final byte FORMAT = 1;
 
     /**
      * Chaîne de fin de ligne
@@ -46,50 +72,199 @@ public class Document implements DocumentInterface {
      */
     protected int currentLineNumber;
 
+    /**
+     * Nombre de caractères du document (hors fins de ligne), maintenu au fil
+     * des modifications
+     */
+    protected transient int totalLength;
+
+    /**
+     * Index des positions de début de ligne
+     */
+    protected transient LineOffsetIndex offsets;
+
+    /**
+     * Nombre de modifications subies par le document, pour invalider les vues
+     * et caches qui en dépendent
+     */
+    protected transient int modCount;
+
+    /**
+     * Dernière version figée renvoyée par {@link #snapshot()} (null si aucune)
+     */
+    protected transient DocumentSnapshot lastSnapshot;
+
+    /**
+     * Modifications subies depuis la dernière version figée, null si elles ne
+     * sont pas suivies (aucune version, ou plus de modifications que de
+     * lignes)
+     */
+    private transient List<PendingChange> pendingChanges;
+
+    /**
+     * Arbre de Merkle des lignes, créé à la première demande de résumé puis
+     * maintenu au fil des modifications (null tant qu'aucun résumé n'a été
+     * demandé)
+     */
+    protected transient MerkleTree merkle;
+
+    /**
+     * Objets prévenus de chaque modification (null si aucun)
+     */
+    private transient volatile List<DocumentListener> listeners;
+
+    /**
+     * Journal des modifications, créé à la première demande (null sinon)
+     */
+    protected transient DocumentJournal journal;
+
     /**
      * Constructeur par défaut, crée un document vierge (une ligne vide)
      */
     public Document() {
-        lines = new ArrayList();
-        currentLine = new Line();
-        lines.add(currentLine);
+        this(new ArrayList());
+    }
+
+    /**
+     * Constructeur à partir d'une structure de stockage des lignes, crée un
+     * document vierge (une ligne vide)
+     * <p>Remarque: la liste fournie doit être vide.</p>
+     * @param _lines Liste vide destinée à contenir les lignes
+     */
+    protected Document(List<LineInterface> _lines) {
+        lines = _lines;
+        offsets = createOffsetIndex();
+        currentLine = newLine("");
+        insertLineAt(0, currentLine);
         currentLineNumber = 0;
     }
 
+    /**
+     * Crée l'index des positions de début de ligne adapté au stockage des
+     * lignes
+     * @return Index des positions
+     */
+    protected LineOffsetIndex createOffsetIndex() {
+        return new FenwickLineIndex(lines, eol.length());
+    }
+
+    /**
+     * Crée une ligne de la représentation configurée (voir
+     * {@link DocumentFactory#newLine(String)})
+     * @param text Contenu initial
+     * @return Nouvelle ligne
+     */
+    protected LineInterface newLine(String text) {
+        return DocumentFactory.newLine(text);
+    }
+
     @Override
     public String toString() {
-        String str = "";
-        int n = lines.size();
-        for (int i = 0; i < n; i++) {
-            str += lines.get(i).toString();
-            if (i < n - 1) {
-                str += eol;
+        StringBuilder str = new StringBuilder(length() + (size() - 1) * eol.length());
+        try {
+            writeTo(str);
+        } catch (IOException ex) {
+            // Impossible avec un StringBuilder
+            throw new IllegalStateException(ex);
+        }
+        return str.toString();
+    }
+
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        boolean first = true;
+        for (LineInterface l : lines) {
+            if (!first) {
+                out.append(eol);
             }
+            out.append(l.getText());
+            first = false;
         }
-        return str;
     }
 
     @Override
-    public void fromString(String text) {
+    public CharSequence asCharSequence() {
+        return new DocumentCharSequence(this);
+    }
+
+    @Override
+    public EditScript fromString(String text) {
         String[] new_lines = text.split(eol);
-        int n_old = size();
-        int n_new = new_lines.length;
-        // Replace common lines
-        for (int i = 0; i < Math.min(n_old, n_new); i++) {
-            lines.get(i).setText(new_lines[i]);
-        }
-        // Remove extra lines from the old version
-        for (int i = n_new; i < n_old; i++) {
-            lines.remove(n_new);
+        return fromLines(Arrays.asList(new_lines));
+    }
+
+    @Override
+    public EditScript fromLines(List<String> texts) {
+        EditScript script = EditScript.diff(getTexts(), texts);
+        apply(script);
+        return script;
+    }
+
+    @Override
+    public EditScript fromDocument(DocumentInterface d) {
+        return fromLines(d.getTexts());
+    }
+
+    /**
+     * Applique un script d'édition au document
+     * <p>Remarque: les lignes non concernées par le script ne sont pas touchées;
+     * les lignes remplacées sont réutilisées autant que possible. La ligne
+     * courante garde son numéro, borné par la nouvelle taille du document.</p>
+     * @param script Script calculé à partir du contenu actuel du document
+     */
+    public void apply(EditScript script) {
+        if (journal != null) {
+            journal.beginGroup();
         }
-        // Add new lines for the new version
-        for (int i = n_old; i < n_new; i++) {
-            lines.add(i, new Line(new_lines[i]));
+        try {
+            applyHunks(script);
+        } finally {
+            if (journal != null) {
+                journal.endGroup();
+            }
         }
         // Shift to the last line if currently out of the document
-        if (currentLineNumber >= n_new) {
-            selectLine(n_new - 1);
+        selectLine(currentLineNumber);
+    }
+
+    /**
+     * Applique les blocs d'un script d'édition
+     * @param script Script calculé à partir du contenu actuel du document
+     */
+    private void applyHunks(EditScript script) {
+        for (EditScript.Hunk h : script) {
+            int position = h.getNewPosition();
+            List<String> inserted = h.getInserted();
+            if (position < 0 || position + h.getRemoved() > size()) {
+                throw new IllegalArgumentException("Bloc hors du document: " + h);
+            }
+            int replaced = Math.min(h.getRemoved(), inserted.size());
+            // Replace common lines
+            for (int i = 0; i < replaced; i++) {
+                setLineText(position + i, inserted.get(i));
+            }
+            // Remove extra lines from the old version
+            for (int i = replaced; i < h.getRemoved(); i++) {
+                removeLineAt(position + replaced);
+            }
+            // Add new lines for the new version
+            for (int i = replaced; i < inserted.size(); i++) {
+                insertLineAt(position + i, newLine(inserted.get(i)));
+            }
+        }
+        // Make sure there is at least one line in the document
+        if (size() == 0) {
+            insertLineAt(0, newLine(""));
+        }
+    }
+
+    @Override
+    public List<String> getTexts() {
+        List<String> texts = new ArrayList(size());
+        for (LineInterface l : lines) {
+            texts.add(l.getText());
         }
+        return texts;
     }
 
     @Override
@@ -102,7 +277,7 @@ public class Document implements DocumentInterface {
 
     @Override
     public LineInterface insertLine() {
-        lines.add(currentLineNumber + 1, new Line());
+        insertLineAt(currentLineNumber + 1, newLine(""));
         return selectLine(currentLineNumber + 1);
     }
 
@@ -120,9 +295,19 @@ public class Document implements DocumentInterface {
     public LineInterface removeLine() {
         // Make sure there is at least one line in the document
         if (size() == 1) {
-            lines.set(0, new Line());
+            if (journal != null) {
+                journal.beginGroup();
+            }
+            try {
+                removeLineAt(0);
+                insertLineAt(0, newLine(""));
+            } finally {
+                if (journal != null) {
+                    journal.endGroup();
+                }
+            }
         } else {
-            lines.remove(currentLineNumber);
+            removeLineAt(currentLineNumber);
         }
         return selectLine(currentLineNumber - 1);
     }
@@ -134,32 +319,497 @@ public class Document implements DocumentInterface {
 
     @Override
     public int length() {
-        int n = 0;
+        return totalLength;
+    }
+
+    @Override
+    public int getLineOfOffset(int offset) {
+        return offsets.lineOfOffset(offset);
+    }
+
+    @Override
+    public int getLineStartOffset(int i) {
+        return offsets.lineStartOffset(Math.max(0, Math.min(size() - 1, i)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: le document mémorise ses modifications à partir de la
+     * première version figée, pour ne recopier ensuite que les lignes
+     * modifiées. Les contenus sont partagés avec les lignes du document, sans
+     * créer de chaîne pour les lignes compactes (voir
+     * {@link AbstractLine#content()}).</p>
+     */
+    @Override
+    public DocumentSnapshot snapshot() {
+        PersistentLineTree tree;
+        if (lastSnapshot != null && pendingChanges != null) {
+            if (pendingChanges.isEmpty() && lastSnapshot.getLineNumber() == currentLineNumber) {
+                return lastSnapshot;
+            }
+            tree = lastSnapshot.getTree();
+            for (PendingChange c : pendingChanges) {
+                tree = c.applyTo(tree);
+            }
+        } else {
+            List<Object> contents = new ArrayList(size());
+            for (LineInterface l : lines) {
+                contents.add(contentOf(l));
+            }
+            tree = PersistentLineTree.of(contents, eol.length());
+        }
+        if (lastSnapshot != null) {
+            lastSnapshot.release();
+        }
+        lastSnapshot = new DocumentSnapshot(tree, currentLineNumber);
+        if (merkle != null) {
+            lastSnapshot.setRootHash(merkle.rootHash());
+        }
+        pendingChanges = new ArrayList();
+        return lastSnapshot;
+    }
+
+    /**
+     * Retourne la place gardée en mémoire par la dernière version figée (voir
+     * {@link #snapshot()}), en plus des lignes du document
+     * <p>Remarque: ses contenus étant partagés avec les lignes, seuls
+     * comptent les nœuds de son arbre et sa forme sérialisée, gardée pour
+     * ses envois et libérée dès la modification suivante du document.</p>
+     * @return Nombre de caractères (un par octet), 0 si aucune version figée
+     * n'est gardée
+     */
+    public long getSnapshotFootprint() {
+        DocumentSnapshot s = lastSnapshot;
+        return s == null ? 0 : (long) s.size() * PersistentLineTree.NODE_CHARS + s.getEncodedLength();
+    }
+
+    /**
+     * Retourne l'arbre de Merkle des lignes, en le créant si besoin
+     * @return Arbre à jour
+     */
+    protected MerkleTree merkle() {
+        if (merkle == null) {
+            merkle = new MerkleTree(getTexts());
+        }
+        return merkle;
+    }
+
+    @Override
+    public long getRootHash() {
+        return merkle().rootHash();
+    }
+
+    @Override
+    public long getHash(int height, int index) {
+        return merkle().hash(height, index);
+    }
+
+    @Override
+    public int getHashHeight() {
+        return merkle().height();
+    }
+
+    /**
+     * Enregistre un objet à prévenir de chaque modification du document
+     * @param listener Objet à prévenir
+     */
+    public synchronized void addDocumentListener(DocumentListener listener) {
+        List<DocumentListener> copy = (listeners == null) ? new ArrayList() : new ArrayList(listeners);
+        copy.add(listener);
+        listeners = copy;
+    }
+
+    /**
+     * Retire un objet de ceux prévenus des modifications du document
+     * @param listener Objet à retirer
+     */
+    public synchronized void removeDocumentListener(DocumentListener listener) {
+        if (listeners != null) {
+            List<DocumentListener> copy = new ArrayList(listeners);
+            copy.remove(listener);
+            listeners = copy.isEmpty() ? null : copy;
+        }
+    }
+
+    /**
+     * Retourne le journal des modifications, en le créant si besoin
+     * <p>Remarque: seules les modifications postérieures à la création du
+     * journal sont annulables.</p>
+     * @return Journal du document
+     */
+    public DocumentJournal getJournal() {
+        if (journal == null) {
+            journal = new DocumentJournal(this);
+        }
+        return journal;
+    }
+
+    /**
+     * Annule la dernière opération (voir {@link DocumentJournal#undo()})
+     * @return Vrai si une opération a été annulée, faux sinon
+     */
+    public boolean undo() {
+        return getJournal().undo();
+    }
+
+    /**
+     * Rétablit la dernière opération annulée (voir
+     * {@link DocumentJournal#redo()})
+     * @return Vrai si une opération a été rétablie, faux sinon
+     */
+    public boolean redo() {
+        return getJournal().redo();
+    }
+
+    /**
+     * Prévient les objets enregistrés (et le journal) d'une modification
+     * @param change Modification subie
+     */
+    protected void fireChange(DocumentChange change) {
+        if (journal != null) {
+            journal.record(change);
+        }
+        // Liste recopiée à chaque enregistrement: le parcours est sûr sans verrou
+        List<DocumentListener> current = listeners;
+        if (current != null) {
+            for (DocumentListener listener : current) {
+                listener.documentChanged(this, change);
+            }
+        }
+    }
+
+    /**
+     * Retourne le contenu d'une ligne tel qu'il est partagé avec les versions
+     * figées (voir {@link AbstractLine#content()})
+     * @param l Ligne
+     * @return Chaîne de caractères, ou octets Latin-1
+     */
+    static Object contentOf(LineInterface l) {
+        return (l instanceof AbstractLine) ? ((AbstractLine) l).content() : l.getText();
+    }
+
+    /**
+     * Mémorise une modification pour la prochaine version figée
+     * @param c Modification subie par le document
+     */
+    private void recordChange(PendingChange c) {
+        if (pendingChanges != null) {
+            if (pendingChanges.isEmpty() && lastSnapshot != null) {
+                // Dernière version figée périmée: libérer sa forme sérialisée
+                lastSnapshot.release();
+            }
+            if (pendingChanges.size() >= lines.size()) {
+                // Recopier tout le document coûtera moins cher
+                pendingChanges = null;
+            } else {
+                pendingChanges.add(c);
+            }
+        }
+    }
+
+    /**
+     * Insère une ligne à une position donnée
+     * @param i Position de la nouvelle ligne (de 0 à N)
+     * @param l Ligne à insérer
+     */
+    protected void insertLineAt(int i, LineInterface l) {
+        lines.add(i, l);
+        attach(l);
+        if (l instanceof AbstractLine) {
+            ((AbstractLine) l).index = i;
+        }
+        lineInserted(i, l);
+    }
+
+    /**
+     * Supprime la ligne d'une position donnée
+     * @param i Position de la ligne (de 0 à N-1)
+     * @return Ligne supprimée
+     */
+    protected LineInterface removeLineAt(int i) {
+        LineInterface l = lines.remove(i);
+        detach(l);
+        lineRemoved(i, l);
+        return l;
+    }
+
+    /**
+     * Change le contenu de la ligne d'une position donnée
+     * @param i Position de la ligne (de 0 à N-1)
+     * @param text Nouveau contenu
+     */
+    protected void setLineText(int i, String text) {
+        LineInterface l = lines.get(i);
+        String oldText;
+        if (l instanceof AbstractLine) {
+            // Position déjà connue: inutile de passer par le propriétaire
+            oldText = ((AbstractLine) l).replaceText(text);
+        } else {
+            oldText = l.getText();
+            l.setText(text);
+        }
+        lineChanged(i, l, oldText);
+    }
+
+    /**
+     * Rattache une ligne au document pour être prévenu de ses modifications
+     * @param l Ligne ajoutée au document
+     */
+    protected void attach(LineInterface l) {
+        if (l instanceof AbstractLine) {
+            ((AbstractLine) l).owner = this;
+        }
+    }
+
+    /**
+     * Détache une ligne retirée du document
+     * @param l Ligne retirée du document
+     */
+    protected void detach(LineInterface l) {
+        if (l instanceof AbstractLine && ((AbstractLine) l).owner == this) {
+            ((AbstractLine) l).owner = null;
+        }
+    }
+
+    /**
+     * Retrouve la position d'une ligne du document (comparaison par identité)
+     * <p>Remarque: la position mémorisée dans la ligne est vérifiée en O(1);
+     * si elle a été décalée, toutes les positions sont renumérotées en un seul
+     * parcours, si bien que les recherches suivantes redeviennent O(1)
+     * jusqu'à la prochaine insertion ou suppression.</p>
+     * @param l Ligne recherchée
+     * @return Position de la ligne, -1 si elle n'appartient pas au document
+     */
+    protected int indexOfLine(LineInterface l) {
+        if (l == currentLine) {
+            return currentLineNumber;
+        }
+        if (l instanceof AbstractLine) {
+            int hint = ((AbstractLine) l).index;
+            if (hint >= 0 && hint < lines.size() && lines.get(hint) == l) {
+                return hint;
+            }
+        }
+        int found = -1;
+        int i = 0;
+        for (LineInterface other : lines) {
+            if (other instanceof AbstractLine) {
+                ((AbstractLine) other).index = i;
+            }
+            if (other == l) {
+                found = i;
+            }
+            i++;
+        }
+        return found;
+    }
+
+    /**
+     * Appelée par une ligne du document après la modification de son contenu
+     * @param l Ligne modifiée
+     * @param oldText Ancien contenu de la ligne
+     */
+    void lineChanged(LineInterface l, String oldText) {
+        int i = indexOfLine(l);
+        if (i >= 0) {
+            lineChanged(i, l, oldText);
+        }
+    }
+
+    /**
+     * Met à jour l'état dérivé après l'insertion d'une ligne
+     * @param i Position de la ligne insérée
+     * @param l Ligne insérée
+     */
+    protected void lineInserted(int i, LineInterface l) {
+        totalLength += l.length();
+        offsets.lineInserted(i);
+        modCount++;
+        if (pendingChanges != null) {
+            recordChange(new PendingChange(PendingChange.INSERTED, i, contentOf(l)));
+        }
+        if (merkle != null) {
+            merkle.lineInserted(i, l.getText());
+        }
+        if (listeners != null || journal != null) {
+            fireChange(new DocumentChange(DocumentChange.Type.INSERTED, i, l.getText(), null));
+        }
+    }
+
+    /**
+     * Met à jour l'état dérivé après la suppression d'une ligne
+     * @param i Ancienne position de la ligne supprimée
+     * @param l Ligne supprimée
+     */
+    protected void lineRemoved(int i, LineInterface l) {
+        totalLength -= l.length();
+        offsets.lineRemoved(i);
+        modCount++;
+        if (pendingChanges != null) {
+            recordChange(new PendingChange(PendingChange.REMOVED, i, null));
+        }
+        if (merkle != null) {
+            merkle.lineRemoved(i);
+        }
+        if (listeners != null || journal != null) {
+            fireChange(new DocumentChange(DocumentChange.Type.REMOVED, i, l.getText(), null));
+        }
+    }
+
+    /**
+     * Met à jour l'état dérivé après la modification du contenu d'une ligne
+     * @param i Position de la ligne modifiée
+     * @param l Ligne modifiée
+     * @param oldText Ancien contenu de la ligne
+     */
+    protected void lineChanged(int i, LineInterface l, String oldText) {
+        int delta = l.length() - oldText.length();
+        totalLength += delta;
+        offsets.lineChanged(i, delta);
+        modCount++;
+        if (pendingChanges != null) {
+            recordChange(new PendingChange(PendingChange.CHANGED, i, contentOf(l)));
+        }
+        if (merkle != null) {
+            merkle.lineChanged(i, l.getText());
+        }
+        if (listeners != null || journal != null) {
+            fireChange(new DocumentChange(DocumentChange.Type.CHANGED, i, l.getText(), oldText));
+        }
+    }
+
+    /**
+     * Écrit le document: version du format, nombre de lignes, contenu de
+     * chaque ligne puis numéro de la ligne courante
+     * @param out Flux de sortie
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(FORMAT);
+        out.writeInt(size());
         for (LineInterface l : lines) {
-            n += l.length();
+            if (l instanceof AbstractLine) {
+                ((AbstractLine) l).writeContent(out);
+            } else {
+                AbstractLine.writeText(out, l.getText());
+            }
         }
-        return n;
+        out.writeInt(currentLineNumber);
     }
 
+    /**
+     * Lit un document écrit par {@link #writeExternal(ObjectOutput)} et
+     * reconstruit l'état dérivé (longueur, index des positions)
+     * @param in Flux d'entrée
+     * @throws IOException Si une erreur survient lors de la lecture, ou si le
+     * format est inconnu
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte format = in.readByte();
+        if (format != FORMAT) {
+            throw new InvalidObjectException("Format de document inconnu: " + format);
+        }
+        int n = in.readInt();
+        if (n < 0) {
+            throw new InvalidObjectException("Nombre de lignes invalide: " + n);
+        }
+        lines.clear();
+        totalLength = 0;
+        for (int i = 0; i < n; i++) {
+            LineInterface l = DocumentFactory.readLine(in);
+            lines.add(l);
+            attach(l);
+            totalLength += l.length();
+        }
+        if (n == 0) {
+            lines.add(newLine(""));
+            attach(lines.get(0));
+        }
+        offsets.rebuild();
+        modCount++;
+        if (lastSnapshot != null) {
+            lastSnapshot.release();
+        }
+        lastSnapshot = null;
+        pendingChanges = null;
+        merkle = null;
+        selectLine(in.readInt());
+        fireChange(DocumentChange.replaced());
+    }
+
+    /**
+     * Modification d'une ligne, rejouée sur la dernière version figée
+     */
+    private static final class PendingChange {
+
+        static final int INSERTED = 0;
+        static final int REMOVED = 1;
+        static final int CHANGED = 2;
+
+        final int kind;
+        final int index;
+        final Object content;
+
+        PendingChange(int _kind, int _index, Object _content) {
+            kind = _kind;
+            index = _index;
+            content = _content;
+        }
+
+        PersistentLineTree applyTo(PersistentLineTree tree) {
+            switch (kind) {
+                case INSERTED:
+                    return tree.insert(index, content);
+                case REMOVED:
+                    return tree.remove(index);
+                default:
+                    return tree.set(index, content);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: calculé à partir du contenu des lignes (voir
+     * {@link #getRootHash()}).</p>
+     */
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 37 * hash + Objects.hashCode(this.lines);
-        return hash;
+        long hash = getRootHash();
+        return (int) (hash ^ (hash >>> 32));
     }
 
+    /**
+     * Compare le contenu de deux documents, quelle que soit leur structure de
+     * stockage
+     * <p>Remarque: si les deux documents tiennent à jour leur arbre de Merkle,
+     * des résumés différents concluent immédiatement.</p>
+     * @param obj Objet comparé
+     * @return Vrai si les deux documents ont les mêmes lignes, faux sinon
+     */
     @Override
     public boolean equals(Object obj) {
-        if (obj == null) {
-            return false;
+        if (obj == this) {
+            return true;
         }
-        if (getClass() != obj.getClass()) {
+        if (!(obj instanceof Document)) {
             return false;
         }
         final Document other = (Document) obj;
-        if (!Objects.equals(this.lines, other.lines)) {
+        if (size() != other.size() || length() != other.length()) {
+            return false;
+        }
+        if (merkle != null && other.merkle != null && merkle.rootHash() != other.merkle.rootHash()) {
             return false;
         }
+        Iterator<LineInterface> it = other.lines.iterator();
+        for (LineInterface l : lines) {
+            if (!l.equals(it.next())) {
+                return false;
+            }
+        }
         return true;
     }
 
@@ -206,6 +856,10 @@ public class Document implements DocumentInterface {
 
         d.fromString("h\ni\nj");
         System.out.println("9/ Document = " + d.toString());
+
+        EditScript script = d.fromString("h\nnew\ni\nj");
+        System.out.println("10/ Document = " + d.toString());
+        System.out.println("10/ Edit script = " + script);
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+/**
+ * Modification élémentaire d'un document, transmise aux
+ * {@link DocumentListener}
+ * <p>
+ * Remarque: la position est celle de la ligne au moment de la modification,
+ * compte tenu des modifications précédentes.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentChange {
+
+    /**
+     * Nature d'une modification
+     */
+    public enum Type {
+
+        /**
+         * Insertion d'une ligne
+         */
+        INSERTED,
+        /**
+         * Suppression d'une ligne
+         */
+        REMOVED,
+        /**
+         * Changement du contenu d'une ligne
+         */
+        CHANGED,
+        /**
+         * Remplacement de tout le contenu, à relire dans le document
+         */
+        REPLACED
+    }
+
+    /**
+     * Nature de la modification
+     */
+    private final Type type;
+
+    /**
+     * Position de la ligne concernée (-1 pour un remplacement complet)
+     */
+    private final int index;
+
+    /**
+     * Contenu de la ligne après la modification (ligne supprimée: contenu
+     * supprimé)
+     */
+    private final String text;
+
+    /**
+     * Contenu de la ligne avant la modification (changement uniquement)
+     */
+    private final String oldText;
+
+    /**
+     * Constructeur
+     * @param _type Nature de la modification
+     * @param _index Position de la ligne concernée
+     * @param _text Contenu de la ligne après la modification
+     * @param _oldText Contenu de la ligne avant la modification
+     */
+    public DocumentChange(Type _type, int _index, String _text, String _oldText) {
+        type = _type;
+        index = _index;
+        text = _text;
+        oldText = _oldText;
+    }
+
+    /**
+     * Crée une modification de remplacement complet
+     * @return Modification sans ligne associée
+     */
+    public static DocumentChange replaced() {
+        return new DocumentChange(Type.REPLACED, -1, null, null);
+    }
+
+    /**
+     * Retourne la nature de la modification
+     * @return Type de modification
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Retourne la position de la ligne concernée
+     * @return Numéro de ligne, -1 pour un remplacement complet
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Retourne le contenu de la ligne après la modification (ou le contenu
+     * supprimé)
+     * @return Chaîne de caractères, null pour un remplacement complet
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Retourne le contenu de la ligne avant un changement
+     * @return Chaîne de caractères, null sauf pour {@link Type#CHANGED}
+     */
+    public String getOldText() {
+        return oldText;
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + index;
+    }
+
+}
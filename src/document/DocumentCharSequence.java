@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+/**
+ * Vue d'un document sous la forme d'une séquence de caractères, sans copie
+ * <p>
+ * Remarque: l'accès à un caractère passe par l'index des positions du document
+ * (O(log n)); la dernière ligne consultée est mémorisée pour que les parcours
+ * séquentiels coûtent O(1) par caractère.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+class DocumentCharSequence implements CharSequence {
+
+    /**
+     * Document consulté
+     */
+    private final Document document;
+
+    /**
+     * Position de début de la vue dans le document (incluse)
+     */
+    private final int start;
+
+    /**
+     * Position de fin de la vue dans le document (exclue), -1 pour suivre la
+     * fin du document
+     */
+    private final int end;
+
+    /**
+     * Dernière ligne consultée, sa position de début et son contenu, valides
+     * tant que le document n'a pas été modifié
+     */
+    private int cachedLine = -1;
+    private int cachedStart;
+    private String cachedText;
+    private int cachedModCount;
+
+    /**
+     * Constructeur, vue de tout le document
+     * @param _document Document consulté
+     */
+    DocumentCharSequence(Document _document) {
+        this(_document, 0, -1);
+    }
+
+    /**
+     * Constructeur, vue d'une portion du document
+     * @param _document Document consulté
+     * @param _start Position de début (incluse)
+     * @param _end Position de fin (exclue), -1 pour suivre la fin du document
+     */
+    private DocumentCharSequence(Document _document, int _start, int _end) {
+        document = _document;
+        start = _start;
+        end = _end;
+    }
+
+    /**
+     * Retourne la position de fin de la vue dans le document
+     * @return Position (exclue)
+     */
+    private int end() {
+        if (end >= 0) {
+            return end;
+        }
+        return document.length() + (document.size() - 1) * Document.eol.length();
+    }
+
+    @Override
+    public int length() {
+        return end() - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+        }
+        int offset = start + index;
+        if (cachedLine < 0 || cachedModCount != document.modCount || offset < cachedStart
+                || offset >= cachedStart + cachedText.length() + Document.eol.length()) {
+            cachedLine = document.getLineOfOffset(offset);
+            cachedStart = document.getLineStartOffset(cachedLine);
+            cachedText = document.lines.get(cachedLine).getText();
+            cachedModCount = document.modCount;
+        }
+        int column = offset - cachedStart;
+        if (column < cachedText.length()) {
+            return cachedText.charAt(column);
+        }
+        return Document.eol.charAt(column - cachedText.length());
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length() || from > to) {
+            throw new IndexOutOfBoundsException("Début: " + from + ", Fin: " + to + ", Longueur: " + length());
+        }
+        return new DocumentCharSequence(document, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        if (start == 0 && end < 0) {
+            return document.toString();
+        }
+        StringBuilder str = new StringBuilder(length());
+        int n = length();
+        for (int i = 0; i < n; i++) {
+            str.append(charAt(i));
+        }
+        return str.toString();
+    }
+
+}
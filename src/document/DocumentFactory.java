@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.DataInput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Classe de création des documents selon l'implémentation configurée
+ * <p>
+ * L'implémentation est choisie par la propriété système
+ * <code>enshare.document</code>:</p>
+ * <ul>
+ * <li><code>array</code> (par défaut): {@link Document}, lignes dans un
+ * tableau;</li>
+ * <li><code>tree</code>: {@link TreeDocument}, lignes dans un arbre
+ * équilibré.</li>
+ * </ul>
+ * <p>
+ * La représentation des lignes est choisie par la propriété système
+ * <code>enshare.line</code>:</p>
+ * <ul>
+ * <li><code>string</code> (par défaut): {@link Line}, contenu dans une
+ * chaîne partagée;</li>
+ * <li><code>compact</code>: {@link CompactLine}, contenu en octets, chaîne
+ * créée à la demande.</li>
+ * </ul>
+ * <p>
+ * La sauvegarde des documents stockés est choisie par la propriété système
+ * <code>enshare.persistence</code>:</p>
+ * <ul>
+ * <li><code>file</code> (par défaut): {@link StorableDocument}, fichier
+ * réécrit à chaque sauvegarde;</li>
+ * <li><code>log</code>: {@link LoggedStorableDocument}, lignes modifiées
+ * ajoutées à un journal, fichier réécrit périodiquement.</li>
+ * </ul>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentFactory {
+
+    /**
+     * Nom de la propriété système qui choisit l'implémentation
+     */
+    static public final String PROPERTY = "enshare.document";
+
+    /**
+     * Nom de la propriété système qui choisit la représentation des lignes
+     */
+    static public final String LINE_PROPERTY = "enshare.line";
+
+    /**
+     * Nom de la propriété système qui choisit la sauvegarde des documents
+     */
+    static public final String PERSISTENCE_PROPERTY = "enshare.persistence";
+
+    /**
+     * Vrai si les lignes sont représentées par des octets
+     */
+    static private final boolean COMPACT_LINES = isCompactLines(System.getProperty(LINE_PROPERTY, "string"));
+
+    /**
+     * Constructeur privé, classe utilitaire
+     */
+    private DocumentFactory() {
+        /* Nothing */
+    }
+
+    /**
+     * Crée un document vierge de l'implémentation configurée
+     * @return Interface du nouveau document
+     */
+    public static DocumentInterface newDocument() {
+        String impl = System.getProperty(PROPERTY, "array");
+        if (impl.equals("tree")) {
+            return new TreeDocument();
+        } else if (impl.equals("array")) {
+            return new Document();
+        } else {
+            throw new IllegalArgumentException("Implémentation de document inconnue: " + impl);
+        }
+    }
+
+    /**
+     * Charge un document stocké, avec la sauvegarde configurée
+     * @param path Chemin du fichier
+     * @return Document stocké
+     * @throws FileNotFoundException Si le nom de fichier n'a pas été trouvé.
+     * @throws IOException Si une erreur survient lors de la lecture sur le disque.
+     */
+    public static StorableDocument newStorableDocument(String path) throws FileNotFoundException, IOException {
+        return isLogged() ? new LoggedStorableDocument(path) : new StorableDocument(path);
+    }
+
+    /**
+     * Crée un document stocké, avec la sauvegarde configurée
+     * <p>Remarque: sauvegarde le document dans le fichier.</p>
+     * @param path Chemin du fichier
+     * @param doc Document
+     * @return Document stocké
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque.
+     */
+    public static StorableDocument newStorableDocument(String path, DocumentInterface doc) throws IOException {
+        return isLogged() ? new LoggedStorableDocument(path, doc) : new StorableDocument(path, doc);
+    }
+
+    private static boolean isLogged() {
+        String impl = System.getProperty(PERSISTENCE_PROPERTY, "file");
+        if (impl.equals("log")) {
+            return true;
+        } else if (impl.equals("file")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Sauvegarde de document inconnue: " + impl);
+        }
+    }
+
+    private static boolean isCompactLines(String impl) {
+        if (impl.equals("compact")) {
+            return true;
+        } else if (impl.equals("string")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Représentation de ligne inconnue: " + impl);
+        }
+    }
+
+    /**
+     * Crée une ligne de la représentation configurée
+     * @param text Contenu initial
+     * @return Nouvelle ligne
+     */
+    public static AbstractLine newLine(String text) {
+        return COMPACT_LINES ? new CompactLine(text) : new Line(text);
+    }
+
+    /**
+     * Retourne le contenu de ligne à conserver pour un texte chargé ou reçu
+     * <p>Remarque: réservé aux chemins de chargement et de réception, où de
+     * nombreuses lignes identiques arrivent d'un coup; les éditions ne passent
+     * pas par la réserve.</p>
+     * @param text Contenu de ligne
+     * @return Représentant partagé (voir {@link LinePool}), ou
+     * <code>text</code> avec la représentation compacte, qui ne conserve pas de
+     * chaîne
+     */
+    public static String share(String text) {
+        return COMPACT_LINES ? text : LinePool.intern(text);
+    }
+
+    /**
+     * Lit une ligne de la représentation configurée, écrite sous la forme
+     * d'une longueur en octets suivie du codage UTF-8 du contenu
+     * @param in Flux d'entrée
+     * @return Nouvelle ligne
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    static AbstractLine readLine(DataInput in) throws IOException {
+        if (COMPACT_LINES) {
+            return CompactLine.fromUtf8(AbstractLine.readBytes(in));
+        }
+        return new Line(LinePool.intern(AbstractLine.readText(in)));
+    }
+
+}
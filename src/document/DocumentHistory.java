@@ -0,0 +1,457 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Historique des versions sauvegardées d'un document
+ * <p>
+ * L'historique d'un fichier <code>rep/nom</code> est
+ * <code>rep/.enshare/nom.history</code>. Chaque sauvegarde qui change le
+ * contenu y ajoute une révision: soit une image complète des lignes, soit
+ * seulement le script d'édition (voir {@link EditScript}) depuis la révision
+ * précédente, dont la taille est proportionnelle au changement. Une image
+ * complète est écrite régulièrement, ce qui borne le nombre de scripts à
+ * appliquer pour reconstruire une révision.</p>
+ * <p>
+ * Comme pour les journaux, chaque enregistrement est précédé de sa longueur
+ * et de son CRC32: un enregistrement incomplet (arrêt pendant l'écriture) est
+ * retiré à l'ouverture.</p>
+ * <p>
+ * Remarque: l'historique est activé par la propriété système
+ * <code>enshare.history</code> (vrai par défaut); une image complète est
+ * écrite toutes les <code>enshare.history.keyframe</code> révisions (32 par
+ * défaut), ou plus tôt si les scripts accumulés dépassent la taille de la
+ * dernière image.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentHistory implements Closeable {
+
+    /**
+     * Nom de la propriété système qui active l'historique
+     */
+    static public final String HISTORY_PROPERTY = "enshare.history";
+
+    /**
+     * Vrai si les sauvegardes sont conservées dans l'historique
+     */
+    static public final boolean ENABLED = Boolean.parseBoolean(System.getProperty(HISTORY_PROPERTY, "true"));
+
+    /**
+     * Nom de la propriété système qui fixe le nombre maximal de révisions
+     * entre deux images complètes
+     */
+    static public final String KEYFRAME_PROPERTY = "enshare.history.keyframe";
+
+    /**
+     * Nombre maximal de révisions entre deux images complètes
+     */
+    static protected final int KEYFRAME_INTERVAL = Math.max(1, Integer.getInteger(KEYFRAME_PROPERTY, 32));
+
+    /**
+     * Suffixe du fichier d'historique
+     */
+    static public final String SUFFIX = ".history";
+
+    /**
+     * Types d'enregistrement: image complète, script d'édition
+     */
+    static private final byte KEYFRAME = 0;
+    static private final byte DELTA = 1;
+
+    /**
+     * Position et date d'une révision dans le fichier
+     */
+    private static final class Revision {
+
+        final long position;
+        final long time;
+        final boolean keyframe;
+
+        Revision(long _position, long _time, boolean _keyframe) {
+            position = _position;
+            time = _time;
+            keyframe = _keyframe;
+        }
+    }
+
+    /**
+     * Chemin du fichier d'historique
+     */
+    protected final Path path;
+
+    /**
+     * Révisions, de la plus ancienne à la plus récente (null tant que le
+     * fichier n'est pas ouvert)
+     */
+    private List<Revision> revisions;
+
+    /**
+     * Fichier d'historique, ouvert en lecture et en écriture (ou null)
+     */
+    private FileChannel channel;
+
+    /**
+     * Dernière révision, si elle a été ajoutée depuis l'ouverture: c'est la
+     * version figée sauvegardée, dont les lignes et l'arbre sont partagés avec
+     * le document, jamais une copie (null sinon)
+     */
+    private DocumentSnapshot last;
+
+    /**
+     * Taille de la dernière image complète, puis taille et nombre des scripts
+     * écrits depuis
+     */
+    private long keyframeBytes;
+    private long deltaBytes;
+    private int deltaCount;
+
+    /**
+     * Constructeur
+     * <p>Remarque: le fichier n'est ouvert qu'à la première utilisation, et
+     * n'est créé qu'à la première révision ajoutée.</p>
+     * @param _path Chemin du fichier d'historique
+     */
+    public DocumentHistory(String _path) {
+        path = Paths.get(_path).toAbsolutePath();
+    }
+
+    /**
+     * Retourne le chemin de l'historique d'un fichier
+     * @param documentPath Chemin du fichier du document
+     * @return Chemin <code>rep/.enshare/nom.history</code>
+     */
+    public static String pathOf(String documentPath) {
+        Path p = Paths.get(documentPath).toAbsolutePath();
+        return p.getParent().resolve(LoggedStorableDocument.LOG_DIRECTORY).resolve(p.getFileName() + SUFFIX).toString();
+    }
+
+    /**
+     * Ouvre le fichier et indexe ses révisions si ce n'est pas déjà fait
+     * @param create Vrai pour créer le fichier s'il n'existe pas; sinon, un
+     * historique absent est lu comme vide, sans être créé
+     */
+    private void open(boolean create) throws IOException {
+        if (revisions != null && (channel != null || !create)) {
+            return;
+        }
+        if (!create && !Files.exists(path)) {
+            revisions = new ArrayList();
+            keyframeBytes = 0;
+            deltaBytes = 0;
+            deltaCount = 0;
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        FileChannel c = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            List<Revision> read = new ArrayList();
+            long size = c.size();
+            long good = 0;
+            long lastKeyframe = 0;
+            long sinceKeyframe = 0;
+            int deltas = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c), StorableDocument.BLOCK_SIZE));
+            byte[] record;
+            while ((record = Records.read(in, size - good)) != null) {
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+                boolean keyframe = r.readByte() == KEYFRAME;
+                read.add(new Revision(good, r.readLong(), keyframe));
+                good += Records.HEADER_SIZE + record.length;
+                if (keyframe) {
+                    lastKeyframe = record.length;
+                    sinceKeyframe = 0;
+                    deltas = 0;
+                } else {
+                    sinceKeyframe += record.length;
+                    deltas++;
+                }
+            }
+            if (!read.isEmpty() && !read.get(0).keyframe) {
+                throw new IOException("Historique " + path + " sans image initiale");
+            }
+            if (good < size) {
+                Logger.getLogger(DocumentHistory.class.getName()).log(Level.WARNING, "Fin incomplète de l'historique " + path + " retirée (" + (size - good) + " octets)");
+                c.truncate(good);
+            }
+            c.position(good);
+            channel = c;
+            revisions = read;
+            keyframeBytes = lastKeyframe;
+            deltaBytes = sinceKeyframe;
+            deltaCount = deltas;
+        } finally {
+            if (channel != c) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Ajoute une révision, si le contenu a changé depuis la précédente
+     * @param content Contenu sauvegardé
+     * @return Numéro de la révision ajoutée, -1 si le contenu n'a pas changé
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque
+     */
+    public int append(DocumentInterface content) throws IOException {
+        return append(null, null, content.snapshot());
+    }
+
+    /**
+     * Ajoute une révision à partir des modifications faites depuis la
+     * précédente, si le contenu a changé
+     * <p>Remarque: si <code>base</code> est la version ajoutée en dernier, le
+     * script de la révision est déduit des modifications, en un temps qui ne
+     * dépend pas de la taille du document; sinon, la dernière révision et le
+     * contenu sont comparés.</p>
+     * @param base Version sur laquelle les modifications ont été faites (ou
+     * null)
+     * @param changes Modifications, dans l'ordre (null si inconnues)
+     * @param content Contenu sauvegardé
+     * @return Numéro de la révision ajoutée, -1 si le contenu n'a pas changé
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque
+     */
+    public synchronized int append(DocumentSnapshot base, List<DocumentChange> changes, DocumentSnapshot content) throws IOException {
+        open(true);
+        long time = System.currentTimeMillis();
+        byte[] record;
+        boolean keyframe = revisions.isEmpty();
+        if (keyframe) {
+            record = encodeKeyframe(time, content);
+        } else {
+            EditScript script = null;
+            if (base != null && base == last && changes != null) {
+                script = EditScript.fromChanges(base, changes);
+            }
+            if (script == null) {
+                script = EditScript.diff(lastRevision().getTexts(), content.getTexts());
+            }
+            if (script.isEmpty()) {
+                last = content;
+                return -1;
+            }
+            record = encodeDelta(time, script);
+            keyframe = deltaCount + 1 >= KEYFRAME_INTERVAL || deltaBytes + record.length > keyframeBytes;
+            if (keyframe) {
+                record = encodeKeyframe(time, content);
+            }
+        }
+        long position = channel.position();
+        Records.write(channel, record);
+        if (StorableDocument.FSYNC) {
+            channel.force(false);
+        }
+        if (keyframe) {
+            keyframeBytes = record.length;
+            deltaBytes = 0;
+            deltaCount = 0;
+        } else {
+            deltaBytes += record.length;
+            deltaCount++;
+        }
+        revisions.add(new Revision(position, time, keyframe));
+        last = content;
+        return revisions.size() - 1;
+    }
+
+    /**
+     * Retourne la dernière révision
+     * <p>Remarque: une révision relue du fichier n'est pas gardée, pour ne
+     * jamais conserver une seconde copie du document.</p>
+     */
+    private DocumentSnapshot lastRevision() throws IOException {
+        if (last != null) {
+            return last;
+        }
+        return new DocumentSnapshot(PersistentLineTree.of(read(revisions.size() - 1), Document.eol.length()), 0);
+    }
+
+    private static byte[] encodeKeyframe(long time, DocumentSnapshot content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(KEYFRAME);
+        out.writeLong(time);
+        out.writeInt(content.size());
+        for (String l : content.getTree()) {
+            AbstractLine.writeText(out, l);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDelta(long time, EditScript script) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DELTA);
+        out.writeLong(time);
+        out.writeInt(script.size());
+        for (EditScript.Hunk h : script) {
+            out.writeInt(h.getOldPosition());
+            out.writeInt(h.getNewPosition());
+            out.writeInt(h.getRemoved());
+            out.writeInt(h.getInserted().size());
+            for (String l : h.getInserted()) {
+                AbstractLine.writeText(out, l);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reconstruit une révision: dernière image complète, puis scripts
+     */
+    private List<String> read(int revision) throws IOException {
+        int k = revision;
+        while (!revisions.get(k).keyframe) {
+            k--;
+        }
+        List<String> lines = null;
+        for (int i = k; i <= revision; i++) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Records.readAt(channel, revisions.get(i).position)));
+            byte kind = in.readByte();
+            in.readLong();
+            int n = in.readInt();
+            if (kind == KEYFRAME) {
+                lines = new ArrayList(n);
+                for (int j = 0; j < n; j++) {
+                    lines.add(AbstractLine.readText(in));
+                }
+            } else {
+                EditScript script = new EditScript();
+                for (int j = 0; j < n; j++) {
+                    int oldPosition = in.readInt();
+                    int newPosition = in.readInt();
+                    int removed = in.readInt();
+                    List<String> inserted = new ArrayList();
+                    for (int m = in.readInt(); m > 0; m--) {
+                        inserted.add(AbstractLine.readText(in));
+                    }
+                    script.add(new EditScript.Hunk(oldPosition, newPosition, removed, inserted));
+                }
+                lines = script.applyTo(lines);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Vérifie un numéro de révision
+     */
+    private void check(int revision) throws IOException {
+        open(false);
+        if (revision < 0 || revision >= revisions.size()) {
+            throw new IndexOutOfBoundsException("Révision " + revision + " inexistante (" + revisions.size() + " révision(s))");
+        }
+    }
+
+    /**
+     * Retourne le nombre de révisions
+     * @return Entier (0 si aucune sauvegarde n'a été conservée)
+     * @throws IOException Si l'historique est illisible
+     */
+    public synchronized int getRevisionCount() throws IOException {
+        open(false);
+        return revisions.size();
+    }
+
+    /**
+     * Retourne les dates des révisions
+     * @return Millisecondes depuis le 1er janvier 1970, de la plus ancienne à
+     * la plus récente révision
+     * @throws IOException Si l'historique est illisible
+     */
+    public synchronized List<Long> getTimestamps() throws IOException {
+        open(false);
+        List<Long> times = new ArrayList(revisions.size());
+        for (Revision r : revisions) {
+            times.add(r.time);
+        }
+        return times;
+    }
+
+    /**
+     * Retourne les lignes d'une révision
+     * @param revision Numéro de la révision (de 0 à N-1)
+     * @return Contenus des lignes
+     * @throws IOException Si l'historique est illisible
+     */
+    public synchronized List<String> getLines(int revision) throws IOException {
+        check(revision);
+        if (revision == revisions.size() - 1) {
+            return lastRevision().getTexts();
+        }
+        return read(revision);
+    }
+
+    /**
+     * Ouvre une révision
+     * @param revision Numéro de la révision (de 0 à N-1)
+     * @return Version figée du document à cette révision
+     * @throws IOException Si l'historique est illisible
+     */
+    public synchronized DocumentSnapshot getRevision(int revision) throws IOException {
+        check(revision);
+        if (revision == revisions.size() - 1) {
+            return new DocumentSnapshot(lastRevision().getTree(), 0);
+        }
+        return new DocumentSnapshot(PersistentLineTree.of(read(revision), Document.eol.length()), 0);
+    }
+
+    /**
+     * Compare deux révisions
+     * @param from Numéro de la révision d'origine
+     * @param to Numéro de la révision finale
+     * @return Script transformant la première révision en la seconde
+     * @throws IOException Si l'historique est illisible
+     */
+    public EditScript diff(int from, int to) throws IOException {
+        return EditScript.diff(getLines(from), getLines(to));
+    }
+
+    /**
+     * Ferme le fichier d'historique (rouvert à la prochaine utilisation)
+     * @throws IOException Si une erreur survient lors de la fermeture
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = null;
+        revisions = null;
+        last = null;
+    }
+
+}
@@ -15,7 +15,9 @@
  */
 package document;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Interface qui définit les fonctionnalités d'un document
@@ -29,11 +31,50 @@ public interface DocumentInterface extends Serializable {
      */
     public String toString();
 
+    /**
+     * Écrit la forme textuelle du document dans un flux, en une seule passe et
+     * sans construire de chaîne intermédiaire
+     * @param out Destination du texte
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    public void writeTo(Appendable out) throws IOException;
+
+    /**
+     * Retourne une vue du texte du document, sans copie
+     * <p>Remarque: la vue reflète les modifications ultérieures du document.</p>
+     * @return Séquence de caractères identique à {@link #toString()}
+     */
+    public CharSequence asCharSequence();
+
     /**
      * Remplit le document à partir d'un texte sous la forme d'une chaîne de caractères
+     * <p>Remarque: seules les lignes qui diffèrent du contenu actuel sont modifiées.</p>
      * @param text Chaîne de caractère, éventuellement avec plusieurs lignes
+     * @return Script d'édition (minimal) appliqué au contenu précédent
+     */
+    public EditScript fromString(String text);
+
+    /**
+     * Remplit le document à partir d'une liste de lignes
+     * <p>Remarque: seules les lignes qui diffèrent du contenu actuel sont modifiées.</p>
+     * @param lines Contenus des lignes, dans l'ordre (une liste vide donne une ligne vide)
+     * @return Script d'édition (minimal) appliqué au contenu précédent
      */
-    public void fromString(String text);
+    public EditScript fromLines(List<String> lines);
+
+    /**
+     * Remplit le document à partir du contenu d'un autre document
+     * <p>Remarque: seules les lignes qui diffèrent du contenu actuel sont modifiées.</p>
+     * @param d Document source
+     * @return Script d'édition (minimal) appliqué au contenu précédent
+     */
+    public EditScript fromDocument(DocumentInterface d);
+
+    /**
+     * Retourne le contenu de toutes les lignes
+     * @return Liste de chaînes de caractères, dans l'ordre du document
+     */
+    public List<String> getTexts();
 
     /**
      * Sélectionne une ligne du document
@@ -80,4 +121,54 @@ public interface DocumentInterface extends Serializable {
      */
     public int length();
 
+    /**
+     * Retourne le numéro de la ligne contenant une position de caractère
+     * <p>Remarque: les positions comptent les caractères de fin de ligne, comme
+     * dans {@link #toString()}. Une position hors du document est bornée par la
+     * première et la dernière ligne.</p>
+     * @param offset Position d'un caractère (à partir de 0)
+     * @return Numéro de ligne (de 0 à N-1)
+     */
+    public int getLineOfOffset(int offset);
+
+    /**
+     * Retourne la position du premier caractère d'une ligne
+     * <p>Remarque: si le numéro de ligne demandé déborde du document, ce numéro est borné par 0 et N-1</p>
+     * @param i Numéro de la ligne (de 0 à N-1)
+     * @return Position du premier caractère de la ligne
+     */
+    public int getLineStartOffset(int i);
+
+    /**
+     * Retourne une version figée du document
+     * <p>Remarque: les lignes inchangées sont partagées avec la version
+     * précédente, le coût est proportionnel au nombre de lignes modifiées
+     * depuis celle-ci.</p>
+     * @return Version immuable du contenu actuel
+     */
+    public DocumentSnapshot snapshot();
+
+    /**
+     * Retourne le résumé du contenu de toutes les lignes (racine de
+     * l'arbre de Merkle, voir {@link MerkleTree})
+     * <p>Remarque: deux documents de même contenu ont le même résumé.</p>
+     * @return Résumé sur 64 bits
+     */
+    public long getRootHash();
+
+    /**
+     * Retourne le résumé d'un intervalle de lignes
+     * @param height Hauteur du nœud (0 pour une ligne)
+     * @param index Indice du nœud à cette hauteur
+     * @return Résumé des lignes [index·2<sup>height</sup>,
+     * (index+1)·2<sup>height</sup>[
+     */
+    public long getHash(int height, int index);
+
+    /**
+     * Retourne la hauteur de la racine de l'arbre de Merkle
+     * @return Entier (0 pour une seule ligne)
+     */
+    public int getHashHeight();
+
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Journal des modifications d'un {@link Document}, permettant de les annuler
+ * et de les rétablir
+ * <p>
+ * Les modifications sont regroupées par opération: une insertion, une
+ * suppression ou un changement de contenu de ligne, ou tout un
+ * {@link Document#fromString(String)}. Des changements successifs d'une même
+ * ligne sont fusionnés en un seul (frappe au clavier). La mémoire est bornée
+ * par un nombre d'opérations et un nombre de caractères, les plus anciennes
+ * étant oubliées.</p>
+ * <p>
+ * Le journal conserve aussi la suite des dernières modifications appliquées
+ * (annulations comprises), numérotées par des versions, pour transmettre
+ * les modifications récentes plutôt que le document entier (voir
+ * {@link #changesSince(long)}).</p>
+ * <p>
+ * Remarque: les bornes sont fixées par les propriétés système
+ * <code>enshare.journal.size</code> (nombre d'opérations, 1000 par défaut)
+ * et <code>enshare.journal.chars</code> (nombre de caractères, 4 Mi par
+ * défaut).</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentJournal {
+
+    /**
+     * Nom de la propriété système qui borne le nombre d'opérations annulables
+     */
+    static public final String SIZE_PROPERTY = "enshare.journal.size";
+
+    /**
+     * Nom de la propriété système qui borne le nombre de caractères conservés
+     */
+    static public final String CHARS_PROPERTY = "enshare.journal.chars";
+
+    /**
+     * Nombre maximal de modifications conservées pour
+     * {@link #changesSince(long)}
+     */
+    static protected final int LOG_LIMIT = 1 << 16;
+
+    /**
+     * Opération annulable: suite de modifications, dans l'ordre
+     */
+    private static final class Group {
+
+        final List<DocumentChange> changes = new ArrayList(1);
+        int chars;
+
+        void add(DocumentChange c) {
+            changes.add(c);
+            chars += weight(c);
+        }
+
+        boolean isSingleChange() {
+            return changes.size() == 1 && changes.get(0).getType() == DocumentChange.Type.CHANGED;
+        }
+    }
+
+    /**
+     * Document journalisé
+     */
+    private final Document document;
+
+    /**
+     * Nombre maximal d'opérations annulables
+     */
+    private final int maxGroups;
+
+    /**
+     * Nombre maximal de caractères conservés
+     */
+    private final int maxChars;
+
+    /**
+     * Opérations annulables (la plus récente en tête) et rétablissables
+     */
+    private final Deque<Group> undoStack = new ArrayDeque();
+    private final Deque<Group> redoStack = new ArrayDeque();
+    private int undoChars;
+
+    /**
+     * Opération en cours de regroupement, et profondeur des regroupements
+     */
+    private Group current;
+    private int depth;
+
+    /**
+     * Vrai pendant une annulation ou un rétablissement
+     */
+    private boolean replaying;
+
+    /**
+     * Dernières modifications appliquées, la première ayant la version
+     * <code>logStart + 1</code>
+     */
+    private final Deque<DocumentChange> log = new ArrayDeque();
+    private long logStart;
+    private int logChars;
+
+    /**
+     * Constructeur
+     * @param _document Document journalisé
+     */
+    DocumentJournal(Document _document) {
+        document = _document;
+        maxGroups = Integer.getInteger(SIZE_PROPERTY, 1000);
+        maxChars = Integer.getInteger(CHARS_PROPERTY, 1 << 22);
+    }
+
+    /**
+     * Estime la place occupée par une modification
+     */
+    private static int weight(DocumentChange c) {
+        int w = 1;
+        if (c.getText() != null) {
+            w += c.getText().length();
+        }
+        if (c.getOldText() != null) {
+            w += c.getOldText().length();
+        }
+        return w;
+    }
+
+    /**
+     * Enregistre une modification appliquée au document
+     * @param c Modification
+     */
+    void record(DocumentChange c) {
+        log.addLast(c);
+        logChars += weight(c);
+        while (log.size() > 1 && (log.size() > LOG_LIMIT || logChars > maxChars)) {
+            logChars -= weight(log.removeFirst());
+            logStart++;
+        }
+        if (c.getType() == DocumentChange.Type.REPLACED) {
+            // Contenu remplacé en bloc: l'historique ne s'applique plus
+            clearHistory();
+            return;
+        }
+        if (replaying) {
+            return;
+        }
+        if (current != null) {
+            current.add(c);
+        } else {
+            Group g = new Group();
+            g.add(c);
+            push(g);
+        }
+    }
+
+    /**
+     * Commence une opération composée de plusieurs modifications
+     * <p>Remarque: les appels peuvent être imbriqués.</p>
+     */
+    void beginGroup() {
+        if (depth++ == 0) {
+            current = new Group();
+        }
+    }
+
+    /**
+     * Termine une opération composée
+     */
+    void endGroup() {
+        if (--depth == 0) {
+            Group g = current;
+            current = null;
+            if (!g.changes.isEmpty()) {
+                push(g);
+            }
+        }
+    }
+
+    /**
+     * Empile une opération annulable, en la fusionnant si possible avec la
+     * précédente
+     */
+    private void push(Group g) {
+        redoStack.clear();
+        Group top = undoStack.peekFirst();
+        if (top != null && g.isSingleChange() && top.isSingleChange()
+                && top.changes.get(0).getIndex() == g.changes.get(0).getIndex()) {
+            // Changements successifs d'une même ligne: seuls le premier et le dernier contenus comptent
+            DocumentChange first = top.changes.get(0);
+            DocumentChange last = g.changes.get(0);
+            undoStack.removeFirst();
+            undoChars -= top.chars;
+            if (last.getText().equals(first.getOldText())) {
+                return;
+            }
+            g = new Group();
+            g.add(new DocumentChange(DocumentChange.Type.CHANGED, first.getIndex(), last.getText(), first.getOldText()));
+        }
+        undoStack.addFirst(g);
+        undoChars += g.chars;
+        while (undoStack.size() > 1 && (undoStack.size() > maxGroups || undoChars > maxChars)) {
+            undoChars -= undoStack.removeLast().chars;
+        }
+    }
+
+    /**
+     * Teste si une opération peut être annulée
+     * @return Vrai si une opération est annulable, faux sinon
+     */
+    public boolean canUndo() {
+        return depth == 0 && !undoStack.isEmpty();
+    }
+
+    /**
+     * Teste si une opération annulée peut être rétablie
+     * @return Vrai si une opération est rétablissable, faux sinon
+     */
+    public boolean canRedo() {
+        return depth == 0 && !redoStack.isEmpty();
+    }
+
+    /**
+     * Annule la dernière opération
+     * <p>Remarque: la ligne courante devient la première ligne concernée.</p>
+     * @return Vrai si une opération a été annulée, faux s'il n'y en avait pas
+     */
+    public boolean undo() {
+        if (!canUndo()) {
+            return false;
+        }
+        Group g = undoStack.removeFirst();
+        undoChars -= g.chars;
+        replaying = true;
+        try {
+            for (int i = g.changes.size() - 1; i >= 0; i--) {
+                DocumentChange c = g.changes.get(i);
+                switch (c.getType()) {
+                    case INSERTED:
+                        document.removeLineAt(c.getIndex());
+                        break;
+                    case REMOVED:
+                        document.insertLineAt(c.getIndex(), document.newLine(c.getText()));
+                        break;
+                    default:
+                        document.setLineText(c.getIndex(), c.getOldText());
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        redoStack.addFirst(g);
+        document.selectLine(g.changes.get(0).getIndex());
+        return true;
+    }
+
+    /**
+     * Rétablit la dernière opération annulée
+     * <p>Remarque: la ligne courante devient la dernière ligne concernée.</p>
+     * @return Vrai si une opération a été rétablie, faux s'il n'y en avait pas
+     */
+    public boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        Group g = redoStack.removeFirst();
+        replaying = true;
+        try {
+            for (DocumentChange c : g.changes) {
+                switch (c.getType()) {
+                    case INSERTED:
+                        document.insertLineAt(c.getIndex(), document.newLine(c.getText()));
+                        break;
+                    case REMOVED:
+                        document.removeLineAt(c.getIndex());
+                        break;
+                    default:
+                        document.setLineText(c.getIndex(), c.getText());
+                }
+            }
+        } finally {
+            replaying = false;
+        }
+        undoStack.addFirst(g);
+        undoChars += g.chars;
+        document.selectLine(g.changes.get(g.changes.size() - 1).getIndex());
+        return true;
+    }
+
+    /**
+     * Retourne la version actuelle du document, c'est-à-dire le nombre de
+     * modifications journalisées
+     * @return Entier croissant
+     */
+    public long getVersion() {
+        return logStart + log.size();
+    }
+
+    /**
+     * Retourne les modifications appliquées depuis une version
+     * @param version Version connue (voir {@link #getVersion()})
+     * @return Modifications dans l'ordre, ou null si elles ne sont plus
+     * toutes conservées (ou si la version est inconnue)
+     */
+    public List<DocumentChange> changesSince(long version) {
+        if (version < logStart || version > getVersion()) {
+            return null;
+        }
+        List<DocumentChange> changes = new ArrayList((int) (getVersion() - version));
+        long v = logStart;
+        for (DocumentChange c : log) {
+            if (++v > version) {
+                if (c.getType() == DocumentChange.Type.REPLACED) {
+                    return null;
+                }
+                changes.add(c);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Oublie les opérations annulables et rétablissables
+     */
+    public void clearHistory() {
+        undoStack.clear();
+        redoStack.clear();
+        undoChars = 0;
+    }
+
+}
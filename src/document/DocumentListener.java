@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+/**
+ * Interface d'un objet prévenu de chaque modification d'un {@link Document}
+ * <p>
+ * Remarque: l'appel a lieu dans le fil d'exécution qui modifie le document,
+ * juste après la modification; il doit donc être bref.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public interface DocumentListener {
+
+    /**
+     * Appelée après chaque modification du document
+     * @param source Document modifié
+     * @param change Modification subie
+     */
+    public void documentChanged(Document source, DocumentChange change);
+
+}
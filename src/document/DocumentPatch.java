@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.Serializable;
+
+/**
+ * Modifications d'une version d'un document à la suivante, à transmettre à
+ * la place du document entier
+ * <p>
+ * Les versions de départ et d'arrivée sont identifiées par leur empreinte
+ * (voir {@link DocumentInterface#getRootHash()}) et leur nombre de lignes: un
+ * correctif n'est appliqué qu'au document dont il part.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentPatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Empreinte et nombre de lignes de la version de départ
+     */
+    private final long baseHash;
+    private final int baseSize;
+
+    /**
+     * Empreinte et nombre de lignes de la version d'arrivée
+     */
+    private final long targetHash;
+    private final int targetSize;
+
+    /**
+     * Blocs de lignes insérées, supprimées ou remplacées
+     */
+    private final EditScript script;
+
+    /**
+     * Constructeur
+     * @param _baseHash Empreinte de la version de départ
+     * @param _baseSize Nombre de lignes de la version de départ
+     * @param _script Script transformant la version de départ en la version
+     * d'arrivée
+     * @param _targetHash Empreinte de la version d'arrivée
+     * @param _targetSize Nombre de lignes de la version d'arrivée
+     */
+    public DocumentPatch(long _baseHash, int _baseSize, EditScript _script, long _targetHash, int _targetSize) {
+        baseHash = _baseHash;
+        baseSize = _baseSize;
+        script = _script;
+        targetHash = _targetHash;
+        targetSize = _targetSize;
+    }
+
+    /**
+     * Calcule le correctif entre deux versions
+     * @param base Version de départ
+     * @param target Version d'arrivée
+     * @return Correctif transformant la première version en la seconde
+     */
+    public static DocumentPatch between(DocumentInterface base, DocumentInterface target) {
+        return new DocumentPatch(base.getRootHash(), base.size(), EditScript.diff(base.getTexts(), target.getTexts()), target.getRootHash(), target.size());
+    }
+
+    /**
+     * Retourne l'empreinte de la version de départ
+     * @return Racine de l'arbre de Merkle
+     */
+    public long getBaseHash() {
+        return baseHash;
+    }
+
+    /**
+     * Retourne le nombre de lignes de la version de départ
+     * @return Entier
+     */
+    public int getBaseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Retourne l'empreinte de la version d'arrivée
+     * @return Racine de l'arbre de Merkle
+     */
+    public long getTargetHash() {
+        return targetHash;
+    }
+
+    /**
+     * Retourne le nombre de lignes de la version d'arrivée
+     * @return Entier
+     */
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Retourne les modifications
+     * @return Script d'édition
+     */
+    public EditScript getScript() {
+        return script;
+    }
+
+    /**
+     * Teste si le correctif part d'une version donnée
+     * @param d Document
+     * @return Vrai si le document est la version de départ, faux sinon
+     */
+    public boolean appliesTo(DocumentInterface d) {
+        return d.size() == baseSize && d.getRootHash() == baseHash;
+    }
+
+    /**
+     * Applique le correctif à un document
+     * <p>Remarque: seules les lignes concernées sont modifiées (voir
+     * {@link Document#apply(EditScript)}).</p>
+     * @param d Document modifiable
+     * @return Vrai si le document est devenu la version d'arrivée, faux si le
+     * correctif ne part pas de ce document (laissé intact) ou si le résultat
+     * diffère de la version d'arrivée
+     */
+    public boolean applyTo(Document d) {
+        if (!appliesTo(d)) {
+            return false;
+        }
+        d.apply(script);
+        return d.size() == targetSize && d.getRootHash() == targetHash;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(baseHash) + " -> " + Long.toHexString(targetHash) + " " + script;
+    }
+
+}
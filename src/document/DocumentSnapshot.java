@@ -0,0 +1,484 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Version figée d'un document, obtenue par {@link Document#snapshot()}
+ * <p>
+ * Les lignes sont stockées dans un arbre persistant partagé avec les versions
+ * précédentes et suivantes: une version peut être conservée ou diffusée à
+ * plusieurs lecteurs sans copie défensive. Les méthodes de modification
+ * lèvent {@link UnsupportedOperationException}.</p>
+ * <p>
+ * Remarque: la forme sérialisée est celle de {@link Document}. À la lecture,
+ * l'objet reçu est un document modifiable de l'implémentation configurée
+ * (voir {@link DocumentFactory}). Elle est codée une seule fois par version,
+ * puis recopiée telle quelle pour chaque destinataire: diffuser une version à
+ * N lecteurs ne parcourt ses lignes qu'une fois.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public final class DocumentSnapshot implements DocumentInterface, Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Lignes de la version
+     */
+    private PersistentLineTree lines;
+
+    /**
+     * Numéro de la ligne courante au moment de la capture
+     */
+    private int currentLineNumber;
+
+    /**
+     * Document reconstruit lors de la désérialisation
+     */
+    private transient DocumentInterface resolved;
+
+    /**
+     * Résumé du contenu, s'il était connu lors de la capture
+     */
+    private transient long rootHash;
+    private transient boolean rootHashKnown;
+
+    /**
+     * Arbre de Merkle des lignes, créé à la première demande d'un résumé
+     * intermédiaire
+     */
+    private transient MerkleTree merkle;
+
+    /**
+     * Forme sérialisée, codée au premier envoi (null une fois la version
+     * remplacée dans son document)
+     */
+    private transient byte[] encoded;
+
+    /**
+     * Vrai une fois la version remplacée dans son document: la forme
+     * sérialisée n'est alors plus gardée
+     */
+    private transient boolean released;
+
+    /**
+     * Constructeur par défaut, réservé à la désérialisation
+     */
+    public DocumentSnapshot() {
+        this(PersistentLineTree.of(new ArrayList<String>(), Document.eol.length()), 0);
+    }
+
+    /**
+     * Constructeur
+     * @param _lines Lignes de la version
+     * @param _currentLineNumber Numéro de la ligne courante
+     */
+    DocumentSnapshot(PersistentLineTree _lines, int _currentLineNumber) {
+        lines = _lines;
+        currentLineNumber = _currentLineNumber;
+    }
+
+    /**
+     * Retourne les lignes de la version
+     * @return Arbre persistant
+     */
+    PersistentLineTree getTree() {
+        return lines;
+    }
+
+    /**
+     * Fixe le résumé du contenu, connu du document lors de la capture
+     * @param hash Racine de l'arbre de Merkle
+     */
+    void setRootHash(long hash) {
+        rootHash = hash;
+        rootHashKnown = true;
+    }
+
+    /**
+     * Retourne l'arbre de Merkle des lignes, en le créant si besoin
+     * @return Arbre (jamais modifié)
+     */
+    private synchronized MerkleTree merkle() {
+        if (merkle == null) {
+            merkle = new MerkleTree(getTexts());
+        }
+        return merkle;
+    }
+
+    @Override
+    public long getRootHash() {
+        return rootHashKnown ? rootHash : merkle().rootHash();
+    }
+
+    @Override
+    public long getHash(int height, int index) {
+        return merkle().hash(height, index);
+    }
+
+    @Override
+    public int getHashHeight() {
+        return merkle().height();
+    }
+
+    /**
+     * Compare le contenu de deux versions figées
+     * @param obj Objet comparé
+     * @return Vrai si les deux versions ont les mêmes lignes, faux sinon
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof DocumentSnapshot)) {
+            return false;
+        }
+        DocumentSnapshot other = (DocumentSnapshot) obj;
+        if (size() != other.size() || length() != other.length() || getRootHash() != other.getRootHash()) {
+            return false;
+        }
+        Iterator<String> it = other.lines.iterator();
+        for (String text : lines) {
+            if (!text.equals(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = getRootHash();
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Retourne le contenu d'une ligne
+     * @param i Numéro de la ligne (de 0 à N-1)
+     * @return Chaîne de caractères
+     */
+    public String getText(int i) {
+        return lines.get(i);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder(length() + (size() - 1) * Document.eol.length());
+        try {
+            writeTo(str);
+        } catch (IOException ex) {
+            // Impossible avec un StringBuilder
+            throw new IllegalStateException(ex);
+        }
+        return str.toString();
+    }
+
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        boolean first = true;
+        for (String text : lines) {
+            if (!first) {
+                out.append(Document.eol);
+            }
+            out.append(text);
+            first = false;
+        }
+    }
+
+    @Override
+    public CharSequence asCharSequence() {
+        return new SnapshotCharSequence(0, length() + (size() - 1) * Document.eol.length());
+    }
+
+    @Override
+    public EditScript fromString(String text) {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    @Override
+    public EditScript fromLines(List<String> texts) {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    @Override
+    public EditScript fromDocument(DocumentInterface d) {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    @Override
+    public List<String> getTexts() {
+        List<String> texts = new ArrayList(size());
+        for (String text : lines) {
+            texts.add(text);
+        }
+        return texts;
+    }
+
+    @Override
+    public LineInterface selectLine(int i) {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    @Override
+    public LineInterface insertLine() {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    /**
+     * Retourne la ligne courante, en lecture seule
+     * @return Ligne dont {@link LineInterface#setText(String)} lève
+     * {@link UnsupportedOperationException}
+     */
+    @Override
+    public LineInterface getLine() {
+        return new FrozenLine(lines.get(currentLineNumber));
+    }
+
+    @Override
+    public int getLineNumber() {
+        return currentLineNumber;
+    }
+
+    @Override
+    public LineInterface removeLine() {
+        throw new UnsupportedOperationException("Version figée");
+    }
+
+    @Override
+    public int size() {
+        return lines.size();
+    }
+
+    @Override
+    public int length() {
+        return lines.chars();
+    }
+
+    @Override
+    public int getLineOfOffset(int offset) {
+        return lines.lineOfOffset(offset);
+    }
+
+    @Override
+    public int getLineStartOffset(int i) {
+        return lines.lineStartOffset(Math.max(0, Math.min(size() - 1, i)));
+    }
+
+    @Override
+    public DocumentSnapshot snapshot() {
+        return this;
+    }
+
+    /**
+     * Retourne la forme sérialisée d'un {@link Document}, en la codant si
+     * besoin
+     * <p>Remarque: la version étant figée, les octets sont codés une fois
+     * pour tous les envois, tant qu'elle est la version actuelle de son
+     * document (voir {@link #release()}); ensuite, ils sont recodés à chaque
+     * envoi.</p>
+     * @return Octets (jamais modifiés)
+     */
+    private synchronized byte[] encoded() {
+        byte[] bytes = encoded;
+        if (bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(length() + 4 * size() + 16);
+            DataOutputStream out = new DataOutputStream(buffer);
+            try {
+                out.writeByte(Document.FORMAT);
+                out.writeInt(size());
+                for (String text : lines) {
+                    AbstractLine.writeText(out, text);
+                }
+                out.writeInt(currentLineNumber);
+                out.flush();
+            } catch (IOException ex) {
+                // Impossible avec un ByteArrayOutputStream
+                throw new IllegalStateException(ex);
+            }
+            bytes = buffer.toByteArray();
+            if (!released) {
+                encoded = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Libère la forme sérialisée, la version n'étant plus celle de son
+     * document
+     * <p>Remarque: les clients qui la retiennent encore (file de
+     * notifications, sauvegarde en attente) n'en gardent plus que les
+     * lignes, partagées avec le document.</p>
+     */
+    synchronized void release() {
+        encoded = null;
+        released = true;
+    }
+
+    /**
+     * Retourne la taille de la forme sérialisée gardée en mémoire
+     * @return Nombre d'octets, 0 si elle n'est pas codée ou a été libérée
+     */
+    synchronized int getEncodedLength() {
+        return encoded == null ? 0 : encoded.length;
+    }
+
+    /**
+     * Écrit la version sous la forme sérialisée d'un {@link Document}
+     * <p>Remarque: les octets sont codés au premier appel puis recopiés.</p>
+     * @param out Flux de sortie
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.write(encoded());
+    }
+
+    /**
+     * Lit la forme sérialisée d'un document dans un nouveau document
+     * modifiable, renvoyé par {@link #readResolve()}
+     * @param in Flux d'entrée
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        Document d = (Document) DocumentFactory.newDocument();
+        d.readExternal(in);
+        resolved = d;
+    }
+
+    /**
+     * Remplace l'objet désérialisé par le document reconstruit
+     * @return Document modifiable
+     * @throws ObjectStreamException Jamais
+     */
+    protected Object readResolve() throws ObjectStreamException {
+        return (resolved != null) ? resolved : this;
+    }
+
+    /**
+     * Ligne en lecture seule
+     */
+    private static final class FrozenLine implements LineInterface {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+
+        FrozenLine(String _text) {
+            text = _text;
+        }
+
+        @Override
+        public void setText(String _text) {
+            throw new UnsupportedOperationException("Version figée");
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Vue d'une portion de la version sous la forme d'une séquence de
+     * caractères, sans copie
+     */
+    private final class SnapshotCharSequence implements CharSequence {
+
+        private final int start;
+        private final int end;
+
+        /**
+         * Dernière ligne consultée, sa position de début et son contenu
+         */
+        private int cachedLine = -1;
+        private int cachedStart;
+        private String cachedText;
+
+        SnapshotCharSequence(int _start, int _end) {
+            start = _start;
+            end = _end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length());
+            }
+            int offset = start + index;
+            if (cachedLine < 0 || offset < cachedStart
+                    || offset >= cachedStart + cachedText.length() + Document.eol.length()) {
+                cachedLine = lines.lineOfOffset(offset);
+                cachedStart = lines.lineStartOffset(cachedLine);
+                cachedText = lines.get(cachedLine);
+            }
+            int column = offset - cachedStart;
+            if (column < cachedText.length()) {
+                return cachedText.charAt(column);
+            }
+            return Document.eol.charAt(column - cachedText.length());
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException("Début: " + from + ", Fin: " + to + ", Longueur: " + length());
+            }
+            return new SnapshotCharSequence(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            if (start == 0 && end == DocumentSnapshot.this.length() + (size() - 1) * Document.eol.length()) {
+                return DocumentSnapshot.this.toString();
+            }
+            StringBuilder str = new StringBuilder(length());
+            for (int i = 0; i < length(); i++) {
+                str.append(charAt(i));
+            }
+            return str.toString();
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Script d'édition ligne à ligne transformant une version d'un document en
+ * une autre
+ * <p>
+ * Le script est une suite de blocs triés par position. Chaque bloc supprime
+ * des lignes consécutives puis insère de nouvelles lignes au même endroit.
+ * Appliqués dans l'ordre, les blocs désignent leur position dans le document
+ * en cours de transformation, qui est aussi leur position dans la version
+ * finale.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class EditScript implements Serializable, Iterable<EditScript.Hunk> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Bloc de modification
+     */
+    public static class Hunk implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Position du bloc dans la version d'origine
+         */
+        private final int oldPosition;
+
+        /**
+         * Position du bloc dans la version finale
+         */
+        private final int newPosition;
+
+        /**
+         * Nombre de lignes supprimées
+         */
+        private final int removed;
+
+        /**
+         * Lignes insérées à la place des lignes supprimées
+         */
+        private final List<String> inserted;
+
+        /**
+         * Constructeur
+         * @param _oldPosition Position du bloc dans la version d'origine
+         * @param _newPosition Position du bloc dans la version finale
+         * @param _removed Nombre de lignes supprimées
+         * @param _inserted Lignes insérées
+         */
+        public Hunk(int _oldPosition, int _newPosition, int _removed, List<String> _inserted) {
+            oldPosition = _oldPosition;
+            newPosition = _newPosition;
+            removed = _removed;
+            inserted = Collections.unmodifiableList(new ArrayList(_inserted));
+        }
+
+        /**
+         * Retourne la position du bloc dans la version d'origine
+         * @return Numéro de ligne
+         */
+        public int getOldPosition() {
+            return oldPosition;
+        }
+
+        /**
+         * Retourne la position du bloc dans la version finale
+         * @return Numéro de ligne
+         */
+        public int getNewPosition() {
+            return newPosition;
+        }
+
+        /**
+         * Retourne le nombre de lignes supprimées
+         * @return Entier
+         */
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Retourne les lignes insérées
+         * @return Liste non modifiable
+         */
+        public List<String> getInserted() {
+            return inserted;
+        }
+
+        @Override
+        public String toString() {
+            return "@@ -" + oldPosition + "," + removed + " +" + newPosition + "," + inserted.size() + " @@";
+        }
+    }
+
+    /**
+     * Blocs de modification, triés par position
+     */
+    private final List<Hunk> hunks;
+
+    /**
+     * Constructeur, crée un script vide
+     */
+    public EditScript() {
+        hunks = new ArrayList();
+    }
+
+    /**
+     * Ajoute un bloc à la fin du script
+     * @param h Bloc situé après tous les blocs déjà présents
+     */
+    public void add(Hunk h) {
+        hunks.add(h);
+    }
+
+    /**
+     * Calcule un script d'édition minimal entre deux versions
+     * @param from Lignes de la version d'origine
+     * @param to Lignes de la version finale
+     * @return Script transformant la première version en la seconde
+     */
+    public static EditScript diff(List<String> from, List<String> to) {
+        return new LineDiff(from, to).compute();
+    }
+
+    /**
+     * Bloc en cours de construction par {@link #fromChanges(DocumentSnapshot, List)}
+     */
+    private static final class Block {
+
+        int oldPosition;
+        int removed;
+        final List<String> inserted = new ArrayList();
+
+        Block(int _oldPosition, int _removed) {
+            oldPosition = _oldPosition;
+            removed = _removed;
+        }
+    }
+
+    /**
+     * Déduit un script d'édition des modifications faites sur une version,
+     * sans comparer les versions
+     * <p>Remarque: le coût dépend du nombre de modifications et non de la
+     * taille du document; les lignes rétablies à l'identique sont retirées
+     * des blocs.</p>
+     * @param from Version d'origine
+     * @param changes Modifications faites sur cette version, dans l'ordre
+     * @return Script transformant la version d'origine en la version
+     * modifiée, null si une modification est un remplacement complet
+     */
+    static EditScript fromChanges(DocumentSnapshot from, List<DocumentChange> changes) {
+        List<Block> blocks = new ArrayList();
+        for (DocumentChange c : changes) {
+            if (c.getType() == DocumentChange.Type.REPLACED) {
+                return null;
+            }
+            int p = c.getIndex();
+            boolean insertion = c.getType() == DocumentChange.Type.INSERTED;
+            int shift = 0;
+            int k = 0;
+            Block inside = null;
+            while (k < blocks.size()) {
+                Block b = blocks.get(k);
+                int start = b.oldPosition + shift;
+                if (p < start) {
+                    break;
+                }
+                int end = start + b.inserted.size();
+                if (p < end || (p == end && insertion)) {
+                    inside = b;
+                    p -= start;
+                    break;
+                }
+                shift += b.inserted.size() - b.removed;
+                k++;
+            }
+            if (inside != null) {
+                // Ligne déjà insérée par le script
+                switch (c.getType()) {
+                    case INSERTED:
+                        inside.inserted.add(p, c.getText());
+                        break;
+                    case REMOVED:
+                        inside.inserted.remove(p);
+                        break;
+                    default:
+                        inside.inserted.set(p, c.getText());
+                }
+                continue;
+            }
+            // Ligne de la version d'origine, ou insertion entre deux de ses lignes
+            int o = p - shift;
+            if (insertion) {
+                Block b = new Block(o, 0);
+                b.inserted.add(c.getText());
+                blocks.add(k, b);
+                continue;
+            }
+            Block previous = k > 0 ? blocks.get(k - 1) : null;
+            Block next = k < blocks.size() ? blocks.get(k) : null;
+            if (previous != null && previous.oldPosition + previous.removed == o) {
+                previous.removed++;
+                if (c.getType() == DocumentChange.Type.CHANGED) {
+                    previous.inserted.add(c.getText());
+                }
+                if (next != null && next.oldPosition == o + 1) {
+                    previous.removed += next.removed;
+                    previous.inserted.addAll(next.inserted);
+                    blocks.remove(k);
+                }
+            } else if (next != null && next.oldPosition == o + 1) {
+                next.oldPosition = o;
+                next.removed++;
+                if (c.getType() == DocumentChange.Type.CHANGED) {
+                    next.inserted.add(0, c.getText());
+                }
+            } else {
+                Block b = new Block(o, 1);
+                if (c.getType() == DocumentChange.Type.CHANGED) {
+                    b.inserted.add(c.getText());
+                }
+                blocks.add(k, b);
+            }
+        }
+        EditScript script = new EditScript();
+        int shift = 0;
+        for (Block b : blocks) {
+            int first = 0;
+            int removed = b.removed;
+            int inserted = b.inserted.size();
+            while (first < removed && first < inserted && from.getText(b.oldPosition + first).equals(b.inserted.get(first))) {
+                first++;
+            }
+            while (removed > first && inserted > first && from.getText(b.oldPosition + removed - 1).equals(b.inserted.get(inserted - 1))) {
+                removed--;
+                inserted--;
+            }
+            if (removed > first || inserted > first) {
+                script.add(new Hunk(b.oldPosition + first, b.oldPosition + first + shift, removed - first, b.inserted.subList(first, inserted)));
+            }
+            shift += b.inserted.size() - b.removed;
+        }
+        return script;
+    }
+
+    /**
+     * Applique le script à des lignes, sans les modifier
+     * @param from Lignes de la version d'origine
+     * @return Lignes de la version finale
+     * @throws IllegalArgumentException Si un bloc sort de la version d'origine
+     */
+    public List<String> applyTo(List<String> from) {
+        List<String> to = new ArrayList(from.size());
+        int cursor = 0;
+        for (Hunk h : hunks) {
+            if (h.getOldPosition() < cursor || h.getOldPosition() + h.getRemoved() > from.size()) {
+                throw new IllegalArgumentException("Bloc hors de la version d'origine: " + h);
+            }
+            to.addAll(from.subList(cursor, h.getOldPosition()));
+            to.addAll(h.getInserted());
+            cursor = h.getOldPosition() + h.getRemoved();
+        }
+        to.addAll(from.subList(cursor, from.size()));
+        return to;
+    }
+
+    /**
+     * Teste si le script ne contient aucune modification
+     * @return Vrai si le script est vide, faux sinon
+     */
+    public boolean isEmpty() {
+        return hunks.isEmpty();
+    }
+
+    /**
+     * Retourne le nombre de blocs
+     * @return Entier
+     */
+    public int size() {
+        return hunks.size();
+    }
+
+    /**
+     * Retourne les blocs du script
+     * @return Liste non modifiable
+     */
+    public List<Hunk> getHunks() {
+        return Collections.unmodifiableList(hunks);
+    }
+
+    @Override
+    public Iterator<Hunk> iterator() {
+        return getHunks().iterator();
+    }
+
+    @Override
+    public String toString() {
+        return hunks.toString();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index des positions de début de ligne fondé sur un arbre de Fenwick
+ * <p>
+ * Remarque: un changement de contenu est répercuté en O(log n). Une insertion
+ * ou une suppression de ligne ne modifie que les nœuds qui couvrent les lignes
+ * suivantes (décalées, comme dans la liste elle-même): ils sont recalculés à
+ * la prochaine requête seulement, en O(n - i + log n) pour une modification à
+ * la ligne i. Ajouter des lignes en fin de document coûte donc O(log n).</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+class FenwickLineIndex implements LineOffsetIndex {
+
+    /**
+     * Lignes indexées
+     */
+    private final List<LineInterface> lines;
+
+    /**
+     * Nombre de caractères d'une fin de ligne
+     */
+    private final int separator;
+
+    /**
+     * Arbre de Fenwick (indices à partir de 1) des longueurs de ligne, fin de
+     * ligne comprise; sa capacité peut dépasser le nombre de lignes
+     */
+    private int[] tree;
+
+    /**
+     * Nombre de lignes couvertes par l'arbre
+     */
+    private int size;
+
+    /**
+     * Nombre de nœuds à jour (les nœuds 1 à <code>valid</code>), les suivants
+     * étant à recalculer à partir des lignes
+     */
+    private int valid;
+
+    /**
+     * Constructeur
+     * @param _lines Lignes à indexer
+     * @param _separator Nombre de caractères d'une fin de ligne
+     */
+    FenwickLineIndex(List<LineInterface> _lines, int _separator) {
+        lines = _lines;
+        separator = _separator;
+        tree = new int[1];
+        size = 0;
+        valid = 0;
+    }
+
+    @Override
+    public void lineInserted(int i) {
+        valid = Math.min(valid, i);
+    }
+
+    @Override
+    public void lineRemoved(int i) {
+        valid = Math.min(valid, i);
+    }
+
+    @Override
+    public void lineChanged(int i, int delta) {
+        // Les nœuds suivants seront recalculés à partir des lignes
+        for (int k = i + 1; k <= valid; k += k & -k) {
+            tree[k] += delta;
+        }
+    }
+
+    @Override
+    public void rebuild() {
+        valid = 0;
+        refresh();
+    }
+
+    /**
+     * Recalcule les nœuds qui ne sont plus à jour
+     * <p>Remarque: les nœuds 1 à <code>valid</code> ne couvrent que des
+     * lignes inchangées; parmi eux, seuls ceux dont le parent est à recalculer
+     * (O(log n) nœuds) contribuent aux nouveaux nœuds.</p>
+     */
+    private void refresh() {
+        int n = lines.size();
+        if (valid >= n && size == n) {
+            return;
+        }
+        int from = Math.min(valid, n);
+        if (tree.length < n + 1) {
+            tree = Arrays.copyOf(tree, Math.max(n + 1, 2 * tree.length));
+        }
+        for (int k = from + 1; k <= n; k++) {
+            tree[k] = lines.get(k - 1).length() + separator;
+        }
+        for (int k = from; k > 0; k -= k & -k) {
+            int parent = k + (k & -k);
+            if (parent <= n) {
+                tree[parent] += tree[k];
+            }
+        }
+        for (int k = from + 1; k <= n; k++) {
+            int parent = k + (k & -k);
+            if (parent <= n) {
+                tree[parent] += tree[k];
+            }
+        }
+        size = n;
+        valid = n;
+    }
+
+    @Override
+    public int lineOfOffset(int offset) {
+        refresh();
+        int n = size;
+        int line = 0;
+        int remaining = offset;
+        for (int step = Integer.highestOneBit(Math.max(n, 1)); step > 0; step >>= 1) {
+            int next = line + step;
+            if (next <= n && tree[next] <= remaining) {
+                line = next;
+                remaining -= tree[next];
+            }
+        }
+        return Math.max(0, Math.min(n - 1, line));
+    }
+
+    @Override
+    public int lineStartOffset(int i) {
+        refresh();
+        int offset = 0;
+        for (int k = i; k > 0; k -= k & -k) {
+            offset += tree[k];
+        }
+        return offset;
+    }
+
+}
@@ -15,11 +15,24 @@
  */
 package document;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
 /**
  * Classe implémentant les fonctionnalité d'une ligne
+ * <p>Remarque: le contenu d'une ligne chargée ou reçue est partagé avec les
+ * lignes identiques au travers de {@link LinePool}; celui d'une ligne éditée
+ * est conservé tel quel.</p>
  * @author Gwénolé Lecorvé
  */
-public class Line implements LineInterface {
+public class Line extends AbstractLine {
+
+    /**
+     * Forme sérialisée incompatible avec celle des versions précédentes (voir
+     * {@link Document})
+     */
+    private static final long serialVersionUID = 2L;
 
     /**
      * Contenu de la ligne
@@ -42,8 +55,10 @@ public class Line implements LineInterface {
     }
 
     @Override
-    public void setText(String _text) {
+    String replaceText(String _text) {
+        String oldText = text;
         text = _text;
+        return oldText;
     }
 
     @Override
@@ -57,8 +72,13 @@ public class Line implements LineInterface {
     }
 
     @Override
-    public String toString() {
-        return getText();
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeContent(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        text = LinePool.intern(readText(in));
     }
 
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calcul d'une différence minimale ligne à ligne (algorithme de Myers, en
+ * espace linéaire par recherche du « serpent du milieu »)
+ * <p>
+ * Remarque: le coût est O((N+M)·D) pour D lignes différentes. Pour borner le
+ * temps de calcul sur des versions presque sans rapport, une zone dont la
+ * recherche dépasse un budget fixé est traitée comme un remplacement en bloc;
+ * le script reste correct mais n'est plus forcément minimal.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+class LineDiff {
+
+    /**
+     * Budget approximatif de comparaisons par recherche de point de coupure
+     */
+    static private final long BUDGET = 1L << 26;
+
+    /**
+     * Nombre minimal de différences explorées quel que soit le budget
+     */
+    static private final int MIN_DEPTH = 64;
+
+    /**
+     * Lignes des deux versions
+     */
+    private final String[] from;
+    private final String[] to;
+
+    /**
+     * Nombre de lignes communes au début et à la fin des deux versions,
+     * écartées avant le codage
+     */
+    private final int prefix;
+    private final int suffix;
+
+    /**
+     * Partie centrale des deux versions, codée par des entiers (deux lignes
+     * égales ont le même code)
+     */
+    private final int[] a;
+    private final int[] b;
+
+    /**
+     * Suites de lignes communes trouvées dans la partie centrale, par triplets
+     * (position d'origine, position finale, longueur), dans l'ordre
+     */
+    private int[] matches = new int[48];
+    private int matchCount = 0;
+
+    /**
+     * Constructeur
+     * @param _from Lignes de la version d'origine
+     * @param _to Lignes de la version finale
+     */
+    LineDiff(List<String> _from, List<String> _to) {
+        from = _from.toArray(new String[_from.size()]);
+        to = _to.toArray(new String[_to.size()]);
+        int max = Math.min(from.length, to.length);
+        int p = 0;
+        while (p < max && from[p].equals(to[p])) {
+            p++;
+        }
+        int q = 0;
+        while (q < max - p && from[from.length - q - 1].equals(to[to.length - q - 1])) {
+            q++;
+        }
+        prefix = p;
+        suffix = q;
+        Map<String, Integer> codes = new HashMap();
+        a = encode(from, prefix, from.length - suffix, codes);
+        b = encode(to, prefix, to.length - suffix, codes);
+    }
+
+    private static int[] encode(String[] lines, int begin, int end, Map<String, Integer> codes) {
+        int[] coded = new int[end - begin];
+        for (int i = begin; i < end; i++) {
+            Integer c = codes.get(lines[i]);
+            if (c == null) {
+                c = codes.size();
+                codes.put(lines[i], c);
+            }
+            coded[i - begin] = c;
+        }
+        return coded;
+    }
+
+    /**
+     * Calcule le script d'édition
+     * @return Script transformant la version d'origine en la version finale
+     */
+    EditScript compute() {
+        compare(0, a.length, 0, b.length);
+        EditScript script = new EditScript();
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i <= matchCount; i++) {
+            int mx = (i < matchCount) ? matches[3 * i] : a.length;
+            int my = (i < matchCount) ? matches[3 * i + 1] : b.length;
+            int len = (i < matchCount) ? matches[3 * i + 2] : 0;
+            if (mx > x || my > y) {
+                script.add(new EditScript.Hunk(prefix + x, prefix + y, mx - x,
+                        Arrays.asList(to).subList(prefix + y, prefix + my)));
+            }
+            x = mx + len;
+            y = my + len;
+        }
+        return script;
+    }
+
+    /**
+     * Enregistre une ligne commune, en prolongeant si possible la suite
+     * précédente
+     */
+    private void match(int x, int y) {
+        if (matchCount > 0) {
+            int last = 3 * (matchCount - 1);
+            if (matches[last] + matches[last + 2] == x && matches[last + 1] + matches[last + 2] == y) {
+                matches[last + 2]++;
+                return;
+            }
+        }
+        if (3 * matchCount + 3 > matches.length) {
+            matches = Arrays.copyOf(matches, 2 * matches.length);
+        }
+        matches[3 * matchCount] = x;
+        matches[3 * matchCount + 1] = y;
+        matches[3 * matchCount + 2] = 1;
+        matchCount++;
+    }
+
+    /**
+     * Compare deux portions des versions et enregistre leurs lignes communes
+     */
+    private void compare(int xlo, int xhi, int ylo, int yhi) {
+        // Préfixe commun
+        while (xlo < xhi && ylo < yhi && a[xlo] == b[ylo]) {
+            match(xlo++, ylo++);
+        }
+        // Suffixe commun, enregistré après la partie centrale
+        int suffix = 0;
+        while (xlo < xhi - suffix && ylo < yhi - suffix && a[xhi - suffix - 1] == b[yhi - suffix - 1]) {
+            suffix++;
+        }
+        xhi -= suffix;
+        yhi -= suffix;
+        if (xlo < xhi && ylo < yhi) {
+            int[] split = bisect(xlo, xhi, ylo, yhi);
+            // Un point de coupure aux extrémités ne ferait pas progresser la récursion
+            if (split != null && (split[0] > xlo || split[1] > ylo) && (split[0] < xhi || split[1] < yhi)) {
+                compare(xlo, split[0], ylo, split[1]);
+                compare(split[0], xhi, split[1], yhi);
+            }
+        }
+        for (int i = 0; i < suffix; i++) {
+            match(xhi + i, yhi + i);
+        }
+    }
+
+    /**
+     * Cherche le point où se croisent les chemins d'édition optimaux partant
+     * du début et de la fin des deux portions
+     * @return Point de coupure {x, y}, ou null si les portions n'ont rien en
+     * commun ou si le budget est dépassé
+     */
+    private int[] bisect(int xlo, int xhi, int ylo, int yhi) {
+        int n = xhi - xlo;
+        int m = yhi - ylo;
+        int maxD = (n + m + 1) / 2;
+        int limit = (int) Math.min(maxD, Math.max(MIN_DEPTH, BUDGET / (n + m)));
+        int vOffset = maxD;
+        int vLength = 2 * maxD + 2;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+        int delta = n - m;
+        // Si la différence de longueur est impaire, le chemin avant croisera le chemin arrière
+        boolean front = (delta % 2 != 0);
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < limit; d++) {
+            // Chemin partant du début
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[xlo + x1] == b[ylo + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;
+                } else if (y1 > m) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        if (x1 >= n - v2[k2Offset]) {
+                            return new int[]{xlo + x1, ylo + y1};
+                        }
+                    }
+                }
+            }
+            // Chemin partant de la fin
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[xlo + n - x2 - 1] == b[ylo + m - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return new int[]{xlo + x1, ylo + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
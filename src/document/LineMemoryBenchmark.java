@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mesure de la mémoire occupée par les lignes d'un document de grande taille
+ * <p>
+ * Compare {@link Line} (contenu dans une chaîne) et {@link CompactLine}
+ * (contenu en octets). Les contenus sont tous différents et créés sans passer
+ * par la réserve {@link LinePool}, qui n'avantage donc pas les chaînes. À lancer avec un tas
+ * suffisant, par exemple <code>-Xmx1g</code>.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class LineMemoryBenchmark {
+
+    /**
+     * Retourne la mémoire occupée après un passage du ramasse-miettes
+     * @return Nombre d'octets
+     */
+    protected static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Mesure et affiche la mémoire occupée par des lignes
+     * @param label Nom de la représentation mesurée
+     * @param compact Vrai pour des lignes {@link CompactLine}
+     * @param n Nombre de lignes
+     * @return Lignes créées (conservées jusqu'à la fin de la mesure)
+     */
+    protected static List<LineInterface> measure(String label, boolean compact, int n) {
+        long before = usedMemory();
+        List<LineInterface> lines = new ArrayList(n);
+        for (int i = 0; i < n; i++) {
+            String text = "Ligne " + i + " du document de test, avec un peu de texte";
+            lines.add(compact ? new CompactLine(text) : new Line(text));
+        }
+        long after = usedMemory();
+        System.out.println(label + "\t" + (after - before) / (1 << 20) + "\t\t" + (after - before) / n);
+        return lines;
+    }
+
+    /**
+     * Méthode principale
+     * @param args Nombre de lignes (optionnel, 1000000 par défaut)
+     */
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println(n + " lignes");
+        System.out.println("Représentation\tMo\t\tOctets par ligne");
+        List<LineInterface> strings = measure("Line", false, n);
+        strings.clear();
+        List<LineInterface> bytes = measure("CompactLine", true, n);
+        bytes.clear();
+    }
+
+}
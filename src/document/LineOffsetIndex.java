@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+/**
+ * Interface d'un index qui associe positions de caractères et numéros de ligne
+ * <p>
+ * Remarque: l'index est prévenu par le document de chaque modification de ses
+ * lignes, après que celle-ci a été appliquée.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+interface LineOffsetIndex {
+
+    /**
+     * Prend en compte l'insertion d'une ligne
+     * @param i Position de la ligne insérée
+     */
+    public void lineInserted(int i);
+
+    /**
+     * Prend en compte la suppression d'une ligne
+     * @param i Ancienne position de la ligne supprimée
+     */
+    public void lineRemoved(int i);
+
+    /**
+     * Prend en compte le changement de longueur d'une ligne
+     * @param i Position de la ligne modifiée
+     * @param delta Différence entre la nouvelle et l'ancienne longueur
+     */
+    public void lineChanged(int i, int delta);
+
+    /**
+     * Reconstruit entièrement l'index à partir des lignes
+     */
+    public void rebuild();
+
+    /**
+     * Retourne le numéro de la ligne contenant une position de caractère
+     * @param offset Position (bornée par le début et la fin du document)
+     * @return Numéro de ligne (de 0 à N-1)
+     */
+    public int lineOfOffset(int offset);
+
+    /**
+     * Retourne la position du premier caractère d'une ligne
+     * @param i Numéro de ligne (de 0 à N-1)
+     * @return Position de caractère
+     */
+    public int lineStartOffset(int i);
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Réserve partagée des contenus de ligne, pour que des lignes identiques (y
+ * compris dans des documents différents) partagent une seule chaîne
+ * <p>
+ * Les entrées ne sont référencées que faiblement: un contenu qui n'est plus
+ * utilisé par aucune ligne est récupéré par le ramasse-miettes. La réserve est
+ * découpée en segments verrouillés séparément pour limiter la contention.</p>
+ * <p>
+ * Seuls les contenus chargés (fichier, journal) ou reçus (désérialisation)
+ * passent par la réserve (voir {@link DocumentFactory#share(String)}): les
+ * lignes éditées, rarement identiques à d'autres, n'en paient pas le coût.</p>
+ * <p>
+ * Remarque: la réserve peut être désactivée par la propriété système
+ * <code>enshare.line.intern=false</code>.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class LinePool {
+
+    /**
+     * Nom de la propriété système qui active la réserve
+     */
+    static public final String PROPERTY = "enshare.line.intern";
+
+    /**
+     * Vrai si la réserve est active
+     */
+    static private final boolean ENABLED = !"false".equals(System.getProperty(PROPERTY));
+
+    /**
+     * Nombre de segments (puissance de 2)
+     */
+    static private final int STRIPES = 16;
+
+    /**
+     * Segments de la réserve, associant chaque contenu à une référence faible
+     * vers son représentant
+     */
+    static private final Map<String, WeakReference<String>>[] stripes = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap();
+        }
+    }
+
+    /**
+     * Constructeur privé, classe utilitaire
+     */
+    private LinePool() {
+        /* Nothing */
+    }
+
+    /**
+     * Retourne le représentant partagé d'un contenu de ligne
+     * @param text Contenu de ligne
+     * @return Chaîne égale à <code>text</code>, partagée avec les autres lignes
+     * de même contenu
+     */
+    public static String intern(String text) {
+        if (!ENABLED || text == null) {
+            return text;
+        }
+        int h = text.hashCode();
+        Map<String, WeakReference<String>> stripe = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<String> ref = stripe.get(text);
+            String shared = (ref == null) ? null : ref.get();
+            if (shared != null) {
+                return shared;
+            }
+            stripe.put(text, new WeakReference(text));
+            return text;
+        }
+    }
+
+    /**
+     * Retourne le nombre de contenus distincts actuellement dans la réserve
+     * @return Entier (approximatif, les entrées récupérées disparaissent au fil
+     * des accès)
+     */
+    public static int size() {
+        int n = 0;
+        for (Map<String, WeakReference<String>> stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.size();
+            }
+        }
+        return n;
+    }
+
+}
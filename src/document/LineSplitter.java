@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Découpage en lignes d'un texte reçu par morceaux, sans construire le texte
+ * entier
+ * <p>
+ * Le résultat est celui de <code>texte.split(separateur)</code> (séparateur
+ * sans caractère spécial d'expression régulière), comme dans
+ * {@link Document#fromString(String)}: les lignes vides finales sont
+ * écartées, et un texte vide donne une ligne vide.</p>
+ * <p>
+ * Les lignes sont rassemblées dans une liste, ou transmises une à une à un
+ * destinataire (voir {@link Sink}) pour ne jamais les conserver toutes.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+class LineSplitter {
+
+    /**
+     * Destinataire des lignes au fil du découpage
+     */
+    interface Sink {
+
+        /**
+         * Reçoit une ligne terminée
+         * @param text Contenu de la ligne
+         */
+        void line(String text);
+    }
+
+    /**
+     * Séparateur de lignes
+     */
+    private final String separator;
+
+    /**
+     * Destinataire des lignes (null pour les rassembler dans la liste)
+     */
+    private final Sink sink;
+
+    /**
+     * Lignes terminées, si aucun destinataire
+     */
+    private final List<String> lines = new ArrayList();
+
+    /**
+     * Contenu de la ligne en cours
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * Nombre de caractères du séparateur reconnus à la fin du morceau
+     * précédent
+     */
+    private int matched;
+
+    /**
+     * Nombre de lignes vides terminées, pas encore ajoutées (elles sont
+     * écartées si elles terminent le texte)
+     */
+    private int emptyLines;
+
+    /**
+     * Vrai si au moins un caractère a été reçu
+     */
+    private boolean started;
+
+    /**
+     * Constructeur
+     * @param _separator Séparateur de lignes (non vide)
+     */
+    LineSplitter(String _separator) {
+        this(_separator, null);
+    }
+
+    /**
+     * Constructeur
+     * @param _separator Séparateur de lignes (non vide)
+     * @param _sink Destinataire des lignes (null pour les rassembler dans une
+     * liste)
+     */
+    LineSplitter(String _separator, Sink _sink) {
+        separator = _separator;
+        sink = _sink;
+    }
+
+    /**
+     * Transmet une ligne terminée
+     * @param text Contenu de la ligne
+     */
+    private void add(String text) {
+        if (sink != null) {
+            sink.line(text);
+        } else {
+            lines.add(text);
+        }
+    }
+
+    /**
+     * Découpe un morceau de texte
+     * @param chars Caractères à consommer (de la position à la limite)
+     */
+    void feed(CharBuffer chars) {
+        if (chars.hasRemaining()) {
+            started = true;
+        }
+        char first = separator.charAt(0);
+        while (chars.hasRemaining()) {
+            if (matched > 0) {
+                // Suite d'un séparateur commencé
+                char c = chars.get();
+                if (c == separator.charAt(matched)) {
+                    if (++matched == separator.length()) {
+                        endLine();
+                    }
+                    continue;
+                }
+                line.append(separator, 0, matched);
+                matched = 0;
+                chars.position(chars.position() - 1);
+                if (c != first) {
+                    line.append(chars.get());
+                    continue;
+                }
+            }
+            // Recherche du début du prochain séparateur
+            int start = chars.position();
+            int limit = chars.limit();
+            int i = start;
+            while (i < limit && chars.get(i) != first) {
+                i++;
+            }
+            appendRange(chars, start, i);
+            if (i < limit) {
+                chars.position(i + 1);
+                matched = 1;
+                if (separator.length() == 1) {
+                    endLine();
+                }
+            } else {
+                chars.position(limit);
+            }
+        }
+    }
+
+    /**
+     * Ajoute des caractères du morceau à la ligne en cours
+     */
+    private void appendRange(CharBuffer chars, int start, int end) {
+        if (end > start) {
+            if (chars.hasArray()) {
+                line.append(chars.array(), chars.arrayOffset() + start, end - start);
+            } else {
+                for (int j = start; j < end; j++) {
+                    line.append(chars.get(j));
+                }
+            }
+        }
+    }
+
+    /**
+     * Termine la ligne en cours
+     */
+    private void endLine() {
+        matched = 0;
+        if (line.length() == 0) {
+            emptyLines++;
+            return;
+        }
+        addPendingEmptyLines();
+        add(DocumentFactory.share(line.toString()));
+        line.setLength(0);
+    }
+
+    private void addPendingEmptyLines() {
+        for (; emptyLines > 0; emptyLines--) {
+            add("");
+        }
+    }
+
+    /**
+     * Termine le découpage
+     * @return Lignes du texte (liste vide si elles ont été transmises à un
+     * destinataire)
+     */
+    List<String> finish() {
+        if (matched > 0) {
+            line.append(separator, 0, matched);
+            matched = 0;
+        }
+        if (!started) {
+            add("");
+        } else if (line.length() > 0) {
+            addPendingEmptyLines();
+            add(DocumentFactory.share(line.toString()));
+            line.setLength(0);
+        }
+        return lines;
+    }
+
+}
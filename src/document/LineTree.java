@@ -0,0 +1,390 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Liste de lignes stockée dans un arbre AVL indexé par position
+ * <p>
+ * Remarque: l'accès, l'insertion et la suppression à une position quelconque
+ * coûtent O(log n), contre O(n) pour une {@link java.util.ArrayList} lorsque
+ * l'on modifie le début d'un long document. Chaque nœud agrège aussi le
+ * nombre de caractères de son sous-arbre, ce qui permet à l'arbre de servir
+ * d'index des positions de début de ligne.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+class LineTree extends AbstractList<LineInterface> implements LineOffsetIndex {
+
+    /**
+     * Nœud de l'arbre
+     */
+    private static final class Node {
+
+        LineInterface line;
+        Node left;
+        Node right;
+        int height;
+        int size;
+        int chars;
+
+        Node(LineInterface _line) {
+            line = _line;
+            height = 1;
+            size = 1;
+            chars = _line.length();
+        }
+    }
+
+    /**
+     * Racine de l'arbre (null si la liste est vide)
+     */
+    private Node root;
+
+    /**
+     * Nombre de caractères d'une fin de ligne
+     */
+    private final int separator;
+
+    /**
+     * Constructeur, crée une liste vide
+     * @param _separator Nombre de caractères d'une fin de ligne
+     */
+    LineTree(int _separator) {
+        separator = _separator;
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public LineInterface get(int index) {
+        return node(index).line;
+    }
+
+    @Override
+    public LineInterface set(int index, LineInterface element) {
+        LineInterface old = get(index);
+        root = replace(root, index, element);
+        return old;
+    }
+
+    @Override
+    public void add(int index, LineInterface element) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        root = insert(root, index, element);
+        modCount++;
+    }
+
+    @Override
+    public LineInterface remove(int index) {
+        LineInterface old = node(index).line;
+        root = delete(root, index);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<LineInterface> iterator() {
+        return new InOrderIterator();
+    }
+
+    @Override
+    public void lineInserted(int i) {
+        /* Nothing: déjà pris en compte par add() */
+    }
+
+    @Override
+    public void lineRemoved(int i) {
+        /* Nothing: déjà pris en compte par remove() */
+    }
+
+    @Override
+    public void lineChanged(int i, int delta) {
+        Node n = root;
+        while (n != null) {
+            n.chars += delta;
+            int leftSize = size(n.left);
+            if (i < leftSize) {
+                n = n.left;
+            } else if (i == leftSize) {
+                return;
+            } else {
+                i -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    @Override
+    public void rebuild() {
+        refresh(root);
+    }
+
+    @Override
+    public int lineOfOffset(int offset) {
+        Node n = root;
+        int line = 0;
+        while (n != null) {
+            int leftSpan = chars(n.left) + separator * size(n.left);
+            if (offset < leftSpan) {
+                n = n.left;
+            } else {
+                offset -= leftSpan;
+                int lineSpan = n.line.length() + separator;
+                if (offset < lineSpan) {
+                    return line + size(n.left);
+                }
+                offset -= lineSpan;
+                line += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return Math.max(0, size() - 1);
+    }
+
+    @Override
+    public int lineStartOffset(int i) {
+        Node n = root;
+        int offset = 0;
+        while (n != null) {
+            int leftSize = size(n.left);
+            if (i < leftSize) {
+                n = n.left;
+            } else {
+                offset += chars(n.left) + separator * leftSize;
+                if (i == leftSize) {
+                    return offset;
+                }
+                offset += n.line.length() + separator;
+                i -= leftSize + 1;
+                n = n.right;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Retrouve le nœud d'une position donnée
+     * @param index Position (de 0 à N-1)
+     * @return Nœud correspondant
+     */
+    private Node node(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Node n = root;
+        while (true) {
+            int leftSize = size(n.left);
+            if (index < leftSize) {
+                n = n.left;
+            } else if (index == leftSize) {
+                return n;
+            } else {
+                index -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    private static int size(Node n) {
+        return (n == null) ? 0 : n.size;
+    }
+
+    private static int height(Node n) {
+        return (n == null) ? 0 : n.height;
+    }
+
+    private static int chars(Node n) {
+        return (n == null) ? 0 : n.chars;
+    }
+
+    /**
+     * Recalcule les informations agrégées d'un nœud à partir de ses fils
+     * @param n Nœud à mettre à jour
+     */
+    private static void update(Node n) {
+        n.height = 1 + Math.max(height(n.left), height(n.right));
+        n.size = 1 + size(n.left) + size(n.right);
+        n.chars = n.line.length() + chars(n.left) + chars(n.right);
+    }
+
+    /**
+     * Recalcule les informations agrégées de tout un sous-arbre
+     * @param n Racine du sous-arbre
+     */
+    private static void refresh(Node n) {
+        if (n != null) {
+            refresh(n.left);
+            refresh(n.right);
+            update(n);
+        }
+    }
+
+    /**
+     * Remplace la ligne d'une position donnée en mettant à jour les nombres de
+     * caractères le long du chemin
+     */
+    private static Node replace(Node n, int index, LineInterface line) {
+        int leftSize = size(n.left);
+        if (index < leftSize) {
+            n.left = replace(n.left, index, line);
+        } else if (index == leftSize) {
+            n.line = line;
+        } else {
+            n.right = replace(n.right, index - leftSize - 1, line);
+        }
+        update(n);
+        return n;
+    }
+
+    private static Node rotateRight(Node n) {
+        Node l = n.left;
+        n.left = l.right;
+        l.right = n;
+        update(n);
+        update(l);
+        return l;
+    }
+
+    private static Node rotateLeft(Node n) {
+        Node r = n.right;
+        n.right = r.left;
+        r.left = n;
+        update(n);
+        update(r);
+        return r;
+    }
+
+    /**
+     * Rééquilibre un nœud dont les sous-arbres diffèrent d'au plus 2 en hauteur
+     * @param n Nœud à rééquilibrer
+     * @return Nouvelle racine du sous-arbre
+     */
+    private static Node balance(Node n) {
+        update(n);
+        int diff = height(n.left) - height(n.right);
+        if (diff > 1) {
+            if (height(n.left.left) < height(n.left.right)) {
+                n.left = rotateLeft(n.left);
+            }
+            return rotateRight(n);
+        } else if (diff < -1) {
+            if (height(n.right.right) < height(n.right.left)) {
+                n.right = rotateRight(n.right);
+            }
+            return rotateLeft(n);
+        }
+        return n;
+    }
+
+    private static Node insert(Node n, int index, LineInterface line) {
+        if (n == null) {
+            return new Node(line);
+        }
+        int leftSize = size(n.left);
+        if (index <= leftSize) {
+            n.left = insert(n.left, index, line);
+        } else {
+            n.right = insert(n.right, index - leftSize - 1, line);
+        }
+        return balance(n);
+    }
+
+    private static Node delete(Node n, int index) {
+        int leftSize = size(n.left);
+        if (index < leftSize) {
+            n.left = delete(n.left, index);
+        } else if (index > leftSize) {
+            n.right = delete(n.right, index - leftSize - 1);
+        } else {
+            if (n.left == null) {
+                return n.right;
+            }
+            if (n.right == null) {
+                return n.left;
+            }
+            // Remplacer par le premier élément du sous-arbre droit
+            Node successor = n.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            n.line = successor.line;
+            n.right = delete(n.right, 0);
+        }
+        return balance(n);
+    }
+
+    /**
+     * Parcours infixe de l'arbre, en O(1) amorti par élément
+     */
+    private class InOrderIterator implements Iterator<LineInterface> {
+
+        private final Deque<Node> stack = new ArrayDeque();
+        private final int expectedModCount = modCount;
+
+        InOrderIterator() {
+            pushLeft(root);
+        }
+
+        private void pushLeft(Node n) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public LineInterface next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node n = stack.pop();
+            pushLeft(n.right);
+            return n.line;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Document associé à un fichier texte, dont les sauvegardes ne font
+ * qu'ajouter les lignes modifiées à un journal
+ * <p>
+ * Le journal d'un fichier <code>rep/nom</code> est
+ * <code>rep/.enshare/nom.log</code>. Il commence par l'empreinte (voir
+ * {@link DocumentInterface#getRootHash()}) du contenu du fichier auquel il
+ * s'applique, suivie d'un enregistrement par sauvegarde. Chaque
+ * enregistrement est précédé de sa longueur et de son CRC32: un
+ * enregistrement incomplet (arrêt pendant l'écriture) est ignoré.</p>
+ * <p>
+ * Lorsque le journal dépasse une taille donnée, le fichier est réécrit en
+ * tâche de fond à partir d'une version figée du document. Les sauvegardes
+ * suivantes vont entre-temps dans un second journal
+ * (<code>nom.log.new</code>), qui remplace le premier une fois le fichier
+ * réécrit. Au chargement, chaque journal dont l'empreinte correspond au
+ * contenu lu est rejoué: un arrêt à n'importe quelle étape ne perd donc
+ * aucune sauvegarde.</p>
+ * <p>
+ * Les sauvegardes différées (voir {@link #prepareSave()}) journalisent
+ * exactement les modifications faites jusqu'à la version figée; l'écriture
+ * sur le disque ne bloque pas les modifications du document.</p>
+ * <p>
+ * Remarque: la taille de journal qui déclenche la réécriture du fichier est
+ * fixée par la propriété système <code>enshare.log.checkpoint</code> (en
+ * octets, 4 Mio par défaut). Seuls les {@link Document} sont journalisés; les
+ * autres documents sont sauvegardés en entier.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class LoggedStorableDocument extends StorableDocument {
+
+    /**
+     * Nom de la propriété système qui fixe la taille de journal déclenchant
+     * la réécriture du fichier
+     */
+    static public final String CHECKPOINT_PROPERTY = "enshare.log.checkpoint";
+
+    /**
+     * Répertoire des journaux, dans celui des fichiers
+     */
+    static public final String LOG_DIRECTORY = ".enshare";
+
+    /**
+     * Nature des enregistrements du journal
+     */
+    static private final byte HEADER = 0;
+    static private final byte CHANGES = 1;
+
+    /**
+     * Réécriture des fichiers: un fil d'exécution dédié, partagé
+     */
+    static private final Executor CHECKPOINTER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "enshare-checkpoints");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Taille de journal (en octets) déclenchant la réécriture du fichier
+     */
+    protected final long checkpointSize = Long.getLong(CHECKPOINT_PROPERTY, 1 << 22);
+
+    /**
+     * Modifications enregistrées jusqu'à une version figée, en attente
+     * d'écriture
+     */
+    private static final class Batch {
+
+        final DocumentSnapshot version;
+        final List<DocumentChange> changes;
+        final boolean full;
+
+        Batch(DocumentSnapshot _version, List<DocumentChange> _changes, boolean _full) {
+            version = _version;
+            changes = _changes;
+            full = _full;
+        }
+    }
+
+    /**
+     * Verrou des écritures sur le disque (pris avant celui de l'objet)
+     * <p>Remarque: le verrou de l'objet ne protège que les modifications
+     * enregistrées, pour ne jamais faire attendre le disque au fil qui
+     * modifie le document.</p>
+     */
+    private final Object io = new Object();
+
+    /**
+     * Modifications du document pas encore préparées pour une sauvegarde
+     */
+    private List<DocumentChange> pending = new ArrayList();
+
+    /**
+     * Vrai si la prochaine sauvegarde doit réécrire le fichier entier
+     */
+    private boolean full;
+
+    /**
+     * Sauvegardes préparées, pas encore écrites (la plus ancienne en tête)
+     */
+    private final Deque<Batch> staged = new ArrayDeque();
+
+    /**
+     * Vrai pendant un chargement (modifications non enregistrées)
+     */
+    private boolean replaying;
+
+    /**
+     * Empreinte et nombre de lignes du contenu auquel s'applique le journal
+     * (celui du fichier, ou de la version en cours d'écriture)
+     * <p>Remarque: les champs suivants sont protégés par {@link #io}.</p>
+     */
+    private long baseHash;
+    private int baseSize;
+
+    /**
+     * Dernière version ajoutée à l'historique (null si aucune), point de
+     * départ des modifications de la sauvegarde suivante
+     */
+    private DocumentSnapshot recorded;
+
+    /**
+     * Journal ouvert en écriture (null s'il n'est pas encore créé), et sa
+     * taille
+     */
+    private FileChannel log;
+    private long logSize;
+
+    /**
+     * Vrai pendant une réécriture du fichier en tâche de fond
+     */
+    private boolean checkpointing;
+
+    /**
+     * Enregistre les modifications du document
+     */
+    private final DocumentListener recorder = new DocumentListener() {
+        @Override
+        public void documentChanged(Document source, DocumentChange change) {
+            record(source, change);
+        }
+    };
+
+    /**
+     * Constructeur à partir d'un chemin de fichier
+     * <p>Remarque: charge le document et rejoue son journal.</p>
+     * @param _path Chemin du fichier
+     * @throws FileNotFoundException Si le nom de fichier n'a pas été trouvé.
+     * @throws IOException Si une erreur survient lors de la lecture sur le disque.
+     */
+    public LoggedStorableDocument(String _path) throws FileNotFoundException, IOException {
+        super(DocumentFactory.newDocument(), _path);
+        attach(getDocument());
+        load();
+    }
+
+    /**
+     * Constructeur à partir d'un chemin de fichier et d'un document
+     * <p>Remarque: sauvegarde le document entier dans le fichier.</p>
+     * @param _path Chemin du fichier
+     * @param doc Document
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque.
+     */
+    public LoggedStorableDocument(String _path, DocumentInterface doc) throws IOException {
+        super(doc, _path);
+        attach(doc);
+        checkpoint();
+    }
+
+    private void attach(DocumentInterface d) {
+        if (d instanceof Document) {
+            ((Document) d).addDocumentListener(recorder);
+        }
+    }
+
+    private void detach(DocumentInterface d) {
+        if (d instanceof Document) {
+            ((Document) d).removeDocumentListener(recorder);
+        }
+    }
+
+    /**
+     * Enregistre une modification du document, à journaliser à la prochaine
+     * sauvegarde
+     */
+    private synchronized void record(Document source, DocumentChange change) {
+        if (replaying || full || source != getDocument()) {
+            return;
+        }
+        if (change.getType() == DocumentChange.Type.REPLACED || pending.size() >= source.size()) {
+            // Plus simple de réécrire le fichier que de journaliser
+            full = true;
+            pending.clear();
+            return;
+        }
+        pending.add(change);
+    }
+
+    @Override
+    public synchronized void setDocument(DocumentInterface d) {
+        detach(getDocument());
+        super.setDocument(d);
+        attach(d);
+        full = true;
+        pending.clear();
+    }
+
+    /**
+     * Retourne le chemin d'un journal du fichier
+     * @param suffix Extension du journal
+     */
+    private Path logPath(String suffix) {
+        Path file = Paths.get(getPath()).toAbsolutePath();
+        return file.getParent().resolve(LOG_DIRECTORY).resolve(file.getFileName() + suffix);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: seules les modifications depuis la sauvegarde précédente
+     * sont ajoutées au journal; le fichier entier n'est réécrit que si le
+     * document a été remplacé, ou si le journal est trop long (en tâche de
+     * fond).</p>
+     */
+    @Override
+    public void save() throws IOException {
+        save(prepareSave());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: les modifications du document faites jusqu'ici sont mises
+     * de côté pour la sauvegarde de la version retournée.</p>
+     */
+    @Override
+    public synchronized DocumentSnapshot prepareSave() {
+        DocumentInterface d = getDocument();
+        DocumentSnapshot version = d.snapshot();
+        staged.addLast(new Batch(version, pending, full || !(d instanceof Document)));
+        pending = new ArrayList();
+        full = false;
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: la version doit avoir été obtenue par
+     * {@link #prepareSave()}; les sauvegardes préparées avant elle sont
+     * écrites du même coup, et une version déjà écrite est ignorée.</p>
+     */
+    @Override
+    public void save(DocumentSnapshot version) throws IOException {
+        synchronized (io) {
+            List<DocumentChange> changes = new ArrayList();
+            boolean rewrite = false;
+            synchronized (this) {
+                boolean found = false;
+                for (Batch b : staged) {
+                    if (b.version == version) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return;
+                }
+                Batch b;
+                do {
+                    b = staged.removeFirst();
+                    changes.addAll(b.changes);
+                    rewrite |= b.full;
+                } while (b.version != version);
+            }
+            if (rewrite) {
+                writeBase(version);
+            } else if (!changes.isEmpty()) {
+                if (log == null) {
+                    openLog();
+                }
+                append(encode(changes));
+                if (logSize > checkpointSize && !checkpointing) {
+                    startCheckpoint(version);
+                }
+            }
+            // Révision déduite des modifications, sans comparer les versions
+            recordRevision(recorded, rewrite ? null : changes, version);
+            recorded = version;
+        }
+    }
+
+    /**
+     * Code un enregistrement de modifications
+     */
+    private static byte[] encode(List<DocumentChange> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CHANGES);
+        out.writeInt(changes.size());
+        for (DocumentChange c : changes) {
+            out.writeByte(c.getType().ordinal());
+            out.writeInt(c.getIndex());
+            if (c.getType() != DocumentChange.Type.REMOVED) {
+                AbstractLine.writeText(out, c.getText());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void saveAs(String _path) throws IOException {
+        synchronized (io) {
+            awaitCheckpoint();
+            setPath(_path);
+            checkpoint();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: le journal est rejoué après la lecture du fichier; les
+     * sauvegardes préparées mais pas encore écrites sont abandonnées.</p>
+     */
+    @Override
+    public void load() throws FileNotFoundException, IOException {
+        synchronized (io) {
+            awaitCheckpoint();
+            closeLog();
+            synchronized (this) {
+                replaying = true;
+            }
+            boolean clean;
+            try {
+                super.load();
+                clean = replay(logPath(".log"), true);
+                Path next = logPath(".log.new");
+                if (Files.exists(next)) {
+                    // Réécriture interrompue: le second journal suit le premier
+                    replay(next, false);
+                    clean = false;
+                }
+            } finally {
+                synchronized (this) {
+                    replaying = false;
+                    pending.clear();
+                    staged.clear();
+                    full = false;
+                }
+            }
+            DocumentInterface d = getDocument();
+            baseHash = d.getRootHash();
+            baseSize = d.size();
+            if (!clean) {
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Rejoue un journal sur le document
+     * @param p Chemin du journal
+     * @param reopen Vrai pour continuer d'écrire dans le journal ensuite
+     * @return Vrai si le journal est absent ou a pu être repris tel quel,
+     * faux s'il ne s'applique pas au contenu du document
+     */
+    private boolean replay(Path p, boolean reopen) throws IOException {
+        if (!Files.exists(p) || !(getDocument() instanceof Document)) {
+            return !Files.exists(p);
+        }
+        Document d = (Document) getDocument();
+        FileChannel channel = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean keep = false;
+        try {
+            long size = channel.size();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BLOCK_SIZE));
+            byte[] header = Records.read(in, size);
+            if (header == null) {
+                return false;
+            }
+            DataInputStream h = new DataInputStream(new ByteArrayInputStream(header));
+            if (h.readByte() != HEADER || h.readLong() != d.getRootHash() || h.readInt() != d.size()) {
+                Logger.getLogger(LoggedStorableDocument.class.getName()).log(Level.INFO, "Journal " + p + " périmé, ignoré");
+                return false;
+            }
+            long good = Records.HEADER_SIZE + header.length;
+            int records = 0;
+            byte[] record;
+            while ((record = Records.read(in, size - good)) != null) {
+                applyRecord(d, record);
+                good += Records.HEADER_SIZE + record.length;
+                records++;
+            }
+            d.selectLine(d.getLineNumber());
+            if (good < size) {
+                Logger.getLogger(LoggedStorableDocument.class.getName()).log(Level.WARNING, "Fin incomplète du journal " + p + " ignorée (" + (size - good) + " octets)");
+            }
+            Logger.getLogger(LoggedStorableDocument.class.getName()).log(Level.INFO, records + " sauvegarde(s) rejouée(s) depuis " + p);
+            if (reopen) {
+                channel.truncate(good);
+                channel.position(good);
+                log = channel;
+                logSize = good;
+                keep = true;
+            }
+            return true;
+        } finally {
+            if (!keep) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Applique au document les modifications d'un enregistrement
+     */
+    private static void applyRecord(Document d, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readByte() != CHANGES) {
+            throw new InvalidObjectException("Enregistrement de journal inconnu");
+        }
+        DocumentChange.Type[] types = DocumentChange.Type.values();
+        for (int n = in.readInt(); n > 0; n--) {
+            DocumentChange.Type type = types[in.readByte()];
+            int i = in.readInt();
+            if (i < 0 || i > d.size() || (i == d.size() && type != DocumentChange.Type.INSERTED)) {
+                throw new InvalidObjectException("Position de ligne invalide dans le journal: " + i);
+            }
+            switch (type) {
+                case INSERTED:
+                    d.insertLineAt(i, d.newLine(DocumentFactory.share(AbstractLine.readText(in))));
+                    break;
+                case REMOVED:
+                    d.removeLineAt(i);
+                    break;
+                case CHANGED:
+                    d.setLineText(i, DocumentFactory.share(AbstractLine.readText(in)));
+                    break;
+                default:
+                    throw new InvalidObjectException("Modification de journal invalide: " + type);
+            }
+        }
+    }
+
+    /**
+     * Crée un journal vide pour un contenu donné
+     * @param p Chemin du journal (remplacé s'il existe)
+     * @param hash Empreinte du contenu
+     * @param size Nombre de lignes du contenu
+     */
+    private void createLog(Path p, long hash, int size) throws IOException {
+        Files.createDirectories(p.getParent());
+        log = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        logSize = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(HEADER);
+        out.writeLong(hash);
+        out.writeInt(size);
+        out.flush();
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Ajoute un enregistrement au journal ouvert
+     */
+    private void append(byte[] record) throws IOException {
+        int written = Records.write(log, record);
+        if (FSYNC) {
+            log.force(false);
+        }
+        logSize += written;
+    }
+
+    /**
+     * Ouvre le journal en écriture, en le créant s'il n'existe pas
+     */
+    private void openLog() throws IOException {
+        Path p = logPath(".log");
+        if (Files.exists(p)) {
+            // Journal repris après une fermeture: son en-tête reste valable
+            log = FileChannel.open(p, StandardOpenOption.WRITE);
+            logSize = log.size();
+            log.position(logSize);
+        } else {
+            createLog(p, baseHash, baseSize);
+        }
+    }
+
+    private void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Attend la fin d'une réécriture du fichier en tâche de fond
+     * <p>Remarque: à appeler avec le verrou {@link #io}.</p>
+     */
+    private void awaitCheckpoint() {
+        boolean interrupted = false;
+        while (checkpointing) {
+            try {
+                io.wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: attend la fin d'une réécriture en tâche de fond, puis ferme
+     * le journal; il est rouvert par une sauvegarde ultérieure.</p>
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (io) {
+            awaitCheckpoint();
+            closeLog();
+        }
+        super.close();
+    }
+
+    /**
+     * Réécrit le fichier entier et supprime les journaux
+     * <p>Remarque: à appeler dans le fil d'exécution qui modifie le
+     * document.</p>
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (io) {
+            DocumentSnapshot version;
+            synchronized (this) {
+                // Empreinte tenue à jour par le document, donc connue de ses versions
+                getDocument().getRootHash();
+                version = getDocument().snapshot();
+                pending.clear();
+                staged.clear();
+                full = false;
+            }
+            writeBase(version);
+            recordRevision(version);
+            recorded = version;
+        }
+    }
+
+    /**
+     * Réécrit le fichier à partir d'une version et supprime les journaux
+     * <p>Remarque: à appeler avec le verrou {@link #io}.</p>
+     */
+    private void writeBase(DocumentSnapshot version) throws IOException {
+        awaitCheckpoint();
+        write(version);
+        closeLog();
+        Files.deleteIfExists(logPath(".log"));
+        Files.deleteIfExists(logPath(".log.new"));
+        baseHash = version.getRootHash();
+        baseSize = version.size();
+    }
+
+    /**
+     * Commence la réécriture du fichier en tâche de fond
+     * <p>Remarque: à appeler avec le verrou {@link #io}.</p>
+     * @param version Contenu du document après la dernière modification
+     * journalisée
+     */
+    private void startCheckpoint(final DocumentSnapshot version) throws IOException {
+        closeLog();
+        createLog(logPath(".log.new"), version.getRootHash(), version.size());
+        checkpointing = true;
+        CHECKPOINTER.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean done = false;
+                try {
+                    write(version);
+                    done = true;
+                } catch (IOException ex) {
+                    Logger.getLogger(LoggedStorableDocument.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    endCheckpoint(done);
+                }
+            }
+        });
+    }
+
+    /**
+     * Termine une réécriture en tâche de fond: le second journal remplace le
+     * premier
+     * @param written Vrai si le fichier a été réécrit
+     */
+    private void endCheckpoint(boolean written) {
+        synchronized (io) {
+            try {
+                if (written) {
+                    Path current = logPath(".log");
+                    Path next = logPath(".log.new");
+                    try {
+                        Files.move(next, current, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException ex) {
+                        Files.move(next, current, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } else {
+                    // Les deux journaux restent cohérents; la prochaine sauvegarde réécrira tout
+                    markFull();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(LoggedStorableDocument.class.getName()).log(Level.SEVERE, null, ex);
+                markFull();
+            } finally {
+                checkpointing = false;
+                io.notifyAll();
+            }
+        }
+    }
+
+    private synchronized void markFull() {
+        full = true;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Arbre de hachage (arbre de Merkle) sur les lignes d'un document
+ * <p>
+ * Le nœud de hauteur <i>h</i> et d'indice <i>i</i> résume les lignes
+ * [i·2<sup>h</sup>, (i+1)·2<sup>h</sup>[. La forme de l'arbre ne dépend que
+ * du nombre de lignes, et le résumé d'un intervalle vide est neutre
+ * ({@link #combine(long, long)}(x, {@link #EMPTY}) = x): deux copies d'un
+ * même contenu ont donc les mêmes résumés, nœud par nœud, quelle que soit leur
+ * histoire. Comparer les racines coûte O(1); descendre dans les seuls nœuds
+ * qui diffèrent localise les lignes modifiées en O(log n) échanges.</p>
+ * <p>
+ * Remarque: le changement de contenu d'une ligne coûte O(log n). Une
+ * insertion ou une suppression décale les lignes suivantes: les niveaux
+ * supérieurs sont alors recalculés à la demande, en O(n).</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class MerkleTree {
+
+    /**
+     * Résumé d'un intervalle de lignes vide
+     */
+    static public final long EMPTY = 0L;
+
+    /**
+     * Résumés des lignes
+     */
+    private long[] leaves;
+
+    /**
+     * Nombre de lignes
+     */
+    private int size;
+
+    /**
+     * Résumés des niveaux supérieurs: <code>levels[h - 1]</code> contient les
+     * nœuds de hauteur h
+     */
+    private long[][] levels = new long[0][];
+
+    /**
+     * Vrai si les niveaux supérieurs doivent être recalculés
+     */
+    private boolean dirty = true;
+
+    /**
+     * Constructeur
+     * @param texts Contenus des lignes, dans l'ordre
+     */
+    public MerkleTree(List<String> texts) {
+        size = texts.size();
+        leaves = new long[Math.max(16, size)];
+        for (int i = 0; i < size; i++) {
+            leaves[i] = hashLine(texts.get(i));
+        }
+    }
+
+    /**
+     * Calcule le résumé du contenu d'une ligne
+     * @param text Contenu de la ligne
+     * @return Résumé sur 64 bits, différent de {@link #EMPTY}
+     */
+    public static long hashLine(String text) {
+        // FNV-1a sur les caractères, puis mélange final
+        long h = 0xcbf29ce484222325L;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = mix(h ^ n);
+        return (h == EMPTY) ? 1L : h;
+    }
+
+    /**
+     * Combine les résumés de deux intervalles consécutifs
+     * @param left Résumé de l'intervalle de gauche
+     * @param right Résumé de l'intervalle de droite
+     * @return Résumé de l'union, égal à <code>left</code> si l'intervalle de
+     * droite est vide
+     */
+    public static long combine(long left, long right) {
+        if (right == EMPTY) {
+            return left;
+        }
+        long h = mix(left * 0x9e3779b97f4a7c15L + right);
+        return (h == EMPTY) ? 1L : h;
+    }
+
+    /**
+     * Mélange final de MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Prend en compte l'insertion d'une ligne
+     * @param i Position de la ligne insérée
+     * @param text Contenu de la ligne
+     */
+    void lineInserted(int i, String text) {
+        if (size == leaves.length) {
+            leaves = Arrays.copyOf(leaves, 2 * size);
+        }
+        System.arraycopy(leaves, i, leaves, i + 1, size - i);
+        leaves[i] = hashLine(text);
+        size++;
+        dirty = true;
+    }
+
+    /**
+     * Prend en compte la suppression d'une ligne
+     * @param i Ancienne position de la ligne supprimée
+     */
+    void lineRemoved(int i) {
+        System.arraycopy(leaves, i + 1, leaves, i, size - i - 1);
+        size--;
+        dirty = true;
+    }
+
+    /**
+     * Prend en compte le changement de contenu d'une ligne
+     * @param i Position de la ligne modifiée
+     * @param text Nouveau contenu
+     */
+    void lineChanged(int i, String text) {
+        leaves[i] = hashLine(text);
+        if (!dirty) {
+            for (int h = 1; h <= levels.length; h++) {
+                i >>= 1;
+                levels[h - 1][i] = combine(node(h - 1, 2 * i), node(h - 1, 2 * i + 1));
+            }
+        }
+    }
+
+    /**
+     * Recalcule les niveaux supérieurs
+     */
+    private void rebuild() {
+        int height = height();
+        if (levels.length != height) {
+            levels = new long[height][];
+        }
+        int width = size;
+        for (int h = 1; h <= height; h++) {
+            width = (width + 1) >> 1;
+            if (levels[h - 1] == null || levels[h - 1].length != width) {
+                levels[h - 1] = new long[width];
+            }
+            for (int i = 0; i < width; i++) {
+                levels[h - 1][i] = combine(node(h - 1, 2 * i), node(h - 1, 2 * i + 1));
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Lit un nœud sans recalcul
+     */
+    private long node(int height, int index) {
+        long[] level = (height == 0) ? leaves : levels[height - 1];
+        int width = (height == 0) ? size : level.length;
+        return (index < width) ? level[index] : EMPTY;
+    }
+
+    /**
+     * Retourne le nombre de lignes
+     * @return Entier
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retourne la hauteur de la racine, la plus petite hauteur dont un nœud
+     * couvre toutes les lignes
+     * @return Entier (0 pour au plus une ligne)
+     */
+    public int height() {
+        int height = 0;
+        while ((1L << height) < size) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Retourne le résumé de toutes les lignes
+     * @return Résumé sur 64 bits ({@link #EMPTY} si aucune ligne)
+     */
+    public long rootHash() {
+        return hash(height(), 0);
+    }
+
+    /**
+     * Retourne le résumé d'un nœud
+     * @param height Hauteur du nœud (0 pour une ligne)
+     * @param index Indice du nœud à cette hauteur
+     * @return Résumé des lignes [index·2<sup>height</sup>,
+     * (index+1)·2<sup>height</sup>[, {@link #EMPTY} si aucune ligne n'est
+     * couverte
+     */
+    public long hash(int height, int index) {
+        if (height < 0 || index < 0) {
+            throw new IllegalArgumentException("Nœud invalide: " + height + "/" + index);
+        }
+        if (dirty && height > 0) {
+            rebuild();
+        }
+        if (height > levels.length) {
+            // Au-dessus de la racine, seul le nœud le plus à gauche couvre des lignes
+            return (index == 0) ? rootHash() : EMPTY;
+        }
+        return node(height, index);
+    }
+
+    /**
+     * Localise les lignes qui diffèrent entre deux documents, en ne
+     * descendant que dans les nœuds dont les résumés diffèrent
+     * <p>Remarque: les positions sont comparées deux à deux; après une
+     * insertion ou une suppression, toutes les lignes suivantes diffèrent.</p>
+     * @param a Premier document
+     * @param b Second document
+     * @return Intervalles [début, fin[ de lignes différentes, triés
+     */
+    public static List<int[]> differingRanges(DocumentInterface a, DocumentInterface b) {
+        List<int[]> ranges = new ArrayList();
+        int height = Math.max(a.getHashHeight(), b.getHashHeight());
+        collect(a, b, height, 0, ranges);
+        return ranges;
+    }
+
+    private static void collect(DocumentInterface a, DocumentInterface b, int height, int index, List<int[]> ranges) {
+        if (a.getHash(height, index) == b.getHash(height, index)) {
+            return;
+        }
+        if (height > 0) {
+            collect(a, b, height - 1, 2 * index, ranges);
+            collect(a, b, height - 1, 2 * index + 1, ranges);
+        } else if (!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] == index) {
+            ranges.get(ranges.size() - 1)[1]++;
+        } else {
+            ranges.add(new int[]{index, index + 1});
+        }
+    }
+
+}
@@ -15,19 +15,81 @@
  */
 package document;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Observable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Classe permettant à des observeurs d'observer un document
+ * <p>
+ * Les modifications du document ({@link DocumentChange}) sont regroupées:
+ * la première modification programme une notification auprès du
+ * distributeur, et toutes celles qui surviennent avant son exécution sont
+ * transmises ensemble aux observateurs, sous la forme d'une liste passée en
+ * paramètre de {@link java.util.Observer#update(Observable, Object)}. Un lot
+ * plus long que le document est réduit à un remplacement complet.</p>
  * @author Gwénolé Lecorvé
  */
 public class ObservableDocument extends Observable {
 
+    /**
+     * Distributeur par défaut: un fil d'exécution dédié, partagé
+     */
+    static private final Executor DEFAULT_DISPATCHER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "enshare-document-events");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     /**
      * Document observable
      */
     protected DocumentInterface document;
 
+    /**
+     * Exécuteur des notifications
+     */
+    protected Executor dispatcher = DEFAULT_DISPATCHER;
+
+    /**
+     * Modifications en attente de notification (null si aucune notification
+     * n'est programmée)
+     */
+    private List<DocumentChange> pending;
+
+    /**
+     * Récepteur des modifications du document observé
+     */
+    private final DocumentListener listener = new DocumentListener() {
+        @Override
+        public void documentChanged(Document source, DocumentChange change) {
+            enqueue(change, source.size());
+        }
+    };
+
+    /**
+     * Notification du lot en attente
+     */
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            List<DocumentChange> batch;
+            synchronized (ObservableDocument.this) {
+                batch = pending;
+                pending = null;
+            }
+            setChanged();
+            notifyObservers(Collections.unmodifiableList(batch));
+        }
+    };
+
     /**
      * Constructeur par défaut, aucun document
      */
@@ -41,6 +103,7 @@ public class ObservableDocument extends Observable {
      */
     public ObservableDocument(DocumentInterface d) {
         document = d;
+        listen(d);
     }
 
     /**
@@ -53,13 +116,62 @@ public class ObservableDocument extends Observable {
 
     /**
      * Change le document observable/observé
-     * <p>Remarque: Seule cette méthode prévient les observateurs d'un changement</p>
+     * <p>Remarque: les observateurs reçoivent un remplacement complet.</p>
      * @param d Document observable/observé
      */
     public void setDocument(DocumentInterface d) {
+        if (document instanceof Document) {
+            ((Document) document).removeDocumentListener(listener);
+        }
         document = d;
-        setChanged();
-        notifyObservers();
+        listen(d);
+        enqueue(DocumentChange.replaced(), 0);
+    }
+
+    /**
+     * Met à jour le document observé à partir du contenu d'un autre document
+     * <p>Remarque: si le document observé est modifiable, seules les lignes
+     * qui diffèrent sont modifiées et notifiées; sinon, il est remplacé.</p>
+     * @param d Document source
+     */
+    public void updateDocument(DocumentInterface d) {
+        if (document instanceof Document && d != null) {
+            document.fromDocument(d);
+        } else {
+            setDocument(d);
+        }
+    }
+
+    /**
+     * Met à jour le document observé à partir du texte saisi dans un
+     * observateur, sans notifier les observateurs
+     * <p>Remarque: le texte vient de l'observateur lui-même, qui l'affiche
+     * déjà; seules les lignes qui diffèrent sont modifiées.</p>
+     * @param text Texte saisi
+     * @return Script d'édition appliqué au document
+     */
+    public EditScript fromText(String text) {
+        if (!(document instanceof Document)) {
+            return document.fromString(text);
+        }
+        Document d = (Document) document;
+        d.removeDocumentListener(listener);
+        try {
+            return d.fromString(text);
+        } finally {
+            d.addDocumentListener(listener);
+        }
+    }
+
+    /**
+     * Met à jour le document observé par un correctif
+     * <p>Remarque: seules les lignes modifiées sont notifiées.</p>
+     * @param patch Correctif
+     * @return Vrai si le correctif a été appliqué, faux si le document observé
+     * n'est pas modifiable ou n'est pas la version de départ du correctif
+     */
+    public boolean patchDocument(DocumentPatch patch) {
+        return document instanceof Document && patch.applyTo((Document) document);
     }
 
     /**
@@ -69,4 +181,45 @@ public class ObservableDocument extends Observable {
     public DocumentInterface getDocument() {
         return document;
     }
+
+    /**
+     * Change l'exécuteur des notifications (par exemple le fil d'exécution
+     * d'une interface graphique)
+     * @param _dispatcher Exécuteur
+     */
+    public synchronized void setDispatcher(Executor _dispatcher) {
+        dispatcher = _dispatcher;
+    }
+
+    /**
+     * S'abonne aux modifications d'un document
+     * @param d Document observé
+     */
+    private void listen(DocumentInterface d) {
+        if (d instanceof Document) {
+            ((Document) d).addDocumentListener(listener);
+        }
+    }
+
+    /**
+     * Ajoute une modification au lot en attente, en programmant sa
+     * notification si besoin
+     * @param change Modification
+     * @param size Nombre de lignes du document après la modification
+     */
+    private synchronized void enqueue(DocumentChange change, int size) {
+        if (pending == null) {
+            pending = new ArrayList();
+            dispatcher.execute(flush);
+        } else if (pending.size() == 1 && pending.get(0).getType() == DocumentChange.Type.REPLACED) {
+            // Tout sera relu
+            return;
+        }
+        if (change.getType() == DocumentChange.Type.REPLACED || pending.size() >= size) {
+            pending.clear();
+            pending.add(DocumentChange.replaced());
+        } else {
+            pending.add(change);
+        }
+    }
 }
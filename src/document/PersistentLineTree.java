@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Liste immuable de contenus de ligne, stockée dans un arbre AVL persistant
+ * indexé par position
+ * <p>
+ * Une modification ne recopie que les O(log n) nœuds du chemin vers la
+ * position modifiée et renvoie un nouvel arbre: les deux versions partagent
+ * tout le reste. Comme {@link LineTree}, chaque nœud agrège le nombre de
+ * caractères de son sous-arbre pour associer positions et numéros de
+ * ligne.</p>
+ * <p>
+ * Un contenu est celui d'une ligne de document, partagé sans recopie (voir
+ * {@link AbstractLine#content()}): une chaîne de caractères, ou les octets
+ * Latin-1 d'une {@link CompactLine}, décodés à la lecture.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+final class PersistentLineTree implements Iterable<String> {
+
+    /**
+     * Nœud immuable de l'arbre
+     */
+    private static final class Node {
+
+        final Object content;
+        final Node left;
+        final Node right;
+        final int height;
+        final int size;
+        final int chars;
+
+        Node(Node _left, Object _content, Node _right) {
+            content = _content;
+            left = _left;
+            right = _right;
+            height = 1 + Math.max(height(_left), height(_right));
+            size = 1 + size(_left) + size(_right);
+            chars = length(_content) + chars(_left) + chars(_right);
+        }
+    }
+
+    /**
+     * Place d'un nœud en mémoire, comptée en caractères (environ 40 octets)
+     */
+    static final int NODE_CHARS = 20;
+
+    /**
+     * Racine de l'arbre (null si la liste est vide)
+     */
+    private final Node root;
+
+    /**
+     * Nombre de caractères d'une fin de ligne
+     */
+    private final int separator;
+
+    private PersistentLineTree(Node _root, int _separator) {
+        root = _root;
+        separator = _separator;
+    }
+
+    /**
+     * Construit un arbre équilibré à partir de contenus, en O(n)
+     * @param texts Contenus des lignes, dans l'ordre (chaînes ou octets
+     * Latin-1)
+     * @param separator Nombre de caractères d'une fin de ligne
+     * @return Nouvel arbre
+     */
+    static PersistentLineTree of(List<?> texts, int separator) {
+        return new PersistentLineTree(build(texts, 0, texts.size()), separator);
+    }
+
+    private static Node build(List<?> texts, int begin, int end) {
+        if (begin >= end) {
+            return null;
+        }
+        int middle = (begin + end) >>> 1;
+        return new Node(build(texts, begin, middle), texts.get(middle), build(texts, middle + 1, end));
+    }
+
+    /**
+     * Retourne le nombre de lignes
+     * @return Entier
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Retourne le nombre de caractères (hors fins de ligne)
+     * @return Entier
+     */
+    int chars() {
+        return chars(root);
+    }
+
+    /**
+     * Retourne le contenu d'une ligne
+     * @param index Position (de 0 à N-1)
+     * @return Contenu de la ligne
+     */
+    String get(int index) {
+        checkIndex(index, size());
+        Node n = root;
+        while (true) {
+            int leftSize = size(n.left);
+            if (index < leftSize) {
+                n = n.left;
+            } else if (index == leftSize) {
+                return text(n.content);
+            } else {
+                index -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Remplace le contenu d'une ligne
+     * @param index Position (de 0 à N-1)
+     * @param text Nouveau contenu
+     * @return Nouvel arbre
+     */
+    PersistentLineTree set(int index, Object text) {
+        checkIndex(index, size());
+        return new PersistentLineTree(replace(root, index, text), separator);
+    }
+
+    /**
+     * Insère une ligne
+     * @param index Position de la nouvelle ligne (de 0 à N)
+     * @param text Contenu de la ligne
+     * @return Nouvel arbre
+     */
+    PersistentLineTree insert(int index, Object text) {
+        checkIndex(index, size() + 1);
+        return new PersistentLineTree(insert(root, index, text), separator);
+    }
+
+    /**
+     * Supprime une ligne
+     * @param index Position (de 0 à N-1)
+     * @return Nouvel arbre
+     */
+    PersistentLineTree remove(int index) {
+        checkIndex(index, size());
+        return new PersistentLineTree(delete(root, index), separator);
+    }
+
+    /**
+     * Retourne le numéro de la ligne contenant une position de caractère
+     * @param offset Position (bornée par le début et la fin du document)
+     * @return Numéro de ligne (de 0 à N-1)
+     */
+    int lineOfOffset(int offset) {
+        Node n = root;
+        int line = 0;
+        while (n != null) {
+            int leftSpan = chars(n.left) + separator * size(n.left);
+            if (offset < leftSpan) {
+                n = n.left;
+            } else {
+                offset -= leftSpan;
+                int lineSpan = length(n.content) + separator;
+                if (offset < lineSpan) {
+                    return line + size(n.left);
+                }
+                offset -= lineSpan;
+                line += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return Math.max(0, size() - 1);
+    }
+
+    /**
+     * Retourne la position du premier caractère d'une ligne
+     * @param i Numéro de ligne (de 0 à N-1)
+     * @return Position de caractère
+     */
+    int lineStartOffset(int i) {
+        Node n = root;
+        int offset = 0;
+        while (n != null) {
+            int leftSize = size(n.left);
+            if (i < leftSize) {
+                n = n.left;
+            } else {
+                offset += chars(n.left) + separator * leftSize;
+                if (i == leftSize) {
+                    return offset;
+                }
+                offset += length(n.content) + separator;
+                i -= leftSize + 1;
+                n = n.right;
+            }
+        }
+        return offset;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new InOrderIterator(root);
+    }
+
+    private static void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Bound: " + bound);
+        }
+    }
+
+    /**
+     * Retourne le nombre de caractères d'un contenu
+     */
+    private static int length(Object content) {
+        return (content instanceof byte[]) ? ((byte[]) content).length : ((String) content).length();
+    }
+
+    /**
+     * Retourne un contenu sous forme de chaîne de caractères
+     */
+    private static String text(Object content) {
+        return (content instanceof byte[]) ? new String((byte[]) content, StandardCharsets.ISO_8859_1) : (String) content;
+    }
+
+    private static int size(Node n) {
+        return (n == null) ? 0 : n.size;
+    }
+
+    private static int height(Node n) {
+        return (n == null) ? 0 : n.height;
+    }
+
+    private static int chars(Node n) {
+        return (n == null) ? 0 : n.chars;
+    }
+
+    private static Node replace(Node n, int index, Object text) {
+        int leftSize = size(n.left);
+        if (index < leftSize) {
+            return new Node(replace(n.left, index, text), n.content, n.right);
+        } else if (index == leftSize) {
+            return new Node(n.left, text, n.right);
+        } else {
+            return new Node(n.left, n.content, replace(n.right, index - leftSize - 1, text));
+        }
+    }
+
+    /**
+     * Crée un nœud équilibré à partir de deux sous-arbres dont les hauteurs
+     * diffèrent d'au plus 2
+     * @return Racine du nouveau sous-arbre
+     */
+    private static Node balance(Node left, Object text, Node right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            if (height(left.left) < height(left.right)) {
+                // Rotation gauche-droite
+                Node lr = left.right;
+                return new Node(new Node(left.left, left.content, lr.left), lr.content, new Node(lr.right, text, right));
+            }
+            return new Node(left.left, left.content, new Node(left.right, text, right));
+        } else if (diff < -1) {
+            if (height(right.right) < height(right.left)) {
+                // Rotation droite-gauche
+                Node rl = right.left;
+                return new Node(new Node(left, text, rl.left), rl.content, new Node(rl.right, right.content, right.right));
+            }
+            return new Node(new Node(left, text, right.left), right.content, right.right);
+        }
+        return new Node(left, text, right);
+    }
+
+    private static Node insert(Node n, int index, Object text) {
+        if (n == null) {
+            return new Node(null, text, null);
+        }
+        int leftSize = size(n.left);
+        if (index <= leftSize) {
+            return balance(insert(n.left, index, text), n.content, n.right);
+        } else {
+            return balance(n.left, n.content, insert(n.right, index - leftSize - 1, text));
+        }
+    }
+
+    private static Node delete(Node n, int index) {
+        int leftSize = size(n.left);
+        if (index < leftSize) {
+            return balance(delete(n.left, index), n.content, n.right);
+        } else if (index > leftSize) {
+            return balance(n.left, n.content, delete(n.right, index - leftSize - 1));
+        } else {
+            if (n.left == null) {
+                return n.right;
+            }
+            if (n.right == null) {
+                return n.left;
+            }
+            // Remplacer par le premier élément du sous-arbre droit
+            Node successor = n.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            return balance(n.left, successor.content, delete(n.right, 0));
+        }
+    }
+
+    /**
+     * Parcours infixe de l'arbre, en O(1) amorti par élément
+     */
+    private static class InOrderIterator implements Iterator<String> {
+
+        private final Deque<Node> stack = new ArrayDeque();
+
+        InOrderIterator(Node root) {
+            pushLeft(root);
+        }
+
+        private void pushLeft(Node n) {
+            while (n != null) {
+                stack.push(n);
+                n = n.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node n = stack.pop();
+            pushLeft(n.right);
+            return text(n.content);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Enregistrements des fichiers ajoutés au fil de l'eau (journaux,
+ * historiques): chacun est précédé de sa longueur et de son CRC32, pour
+ * reconnaître un enregistrement incomplet après un arrêt pendant
+ * l'écriture
+ *
+ * @author Gwénolé Lecorvé
+ */
+final class Records {
+
+    /**
+     * Taille de l'en-tête d'un enregistrement (longueur et CRC32)
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * Constructeur privé, classe utilitaire
+     */
+    private Records() {
+        /* Nothing */
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Lit un enregistrement
+     * @param in Flux du fichier
+     * @param remaining Nombre d'octets restant dans le fichier
+     * @return Contenu de l'enregistrement, null s'il est absent, incomplet ou
+     * corrompu
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    static byte[] read(DataInputStream in, long remaining) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > remaining - HEADER_SIZE) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            return (checksum(record) == crc) ? record : null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Lit l'enregistrement d'une position connue
+     * @param channel Fichier
+     * @param position Position de l'enregistrement
+     * @return Contenu de l'enregistrement
+     * @throws IOException Si l'enregistrement est illisible
+     */
+    static byte[] readAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 0 || position + HEADER_SIZE + length > channel.size()) {
+            throw new InvalidObjectException("Enregistrement invalide à la position " + position);
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(channel, record, position + HEADER_SIZE);
+        if (checksum(record.array()) != crc) {
+            throw new InvalidObjectException("Enregistrement corrompu à la position " + position);
+        }
+        return record.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Ajoute un enregistrement à la position courante d'un fichier
+     * @param channel Fichier ouvert en écriture
+     * @param record Contenu de l'enregistrement
+     * @return Nombre d'octets écrits
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    static int write(FileChannel channel, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length).putInt(checksum(record)).put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return HEADER_SIZE + record.length;
+    }
+
+}
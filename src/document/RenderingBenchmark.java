@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Mesure du temps de rendu textuel d'un document de grande taille
+ * <p>
+ * Compare l'ancien rendu par concaténation de chaînes (quadratique) au rendu
+ * en une passe de {@link Document#toString()} et de
+ * {@link Document#writeTo(Appendable)}. L'ancien rendu n'est mesuré que
+ * jusqu'à 1 Mo, au-delà il dure plusieurs minutes.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class RenderingBenchmark {
+
+    /**
+     * Taille maximale (en caractères) pour laquelle l'ancien rendu est mesuré
+     */
+    static protected final int LEGACY_LIMIT = 1 << 20;
+
+    /**
+     * Rendu tel qu'il était fait avant l'écriture en une passe
+     * @param d Document à rendre
+     * @return Forme textuelle du document
+     */
+    protected static String legacyToString(Document d) {
+        String str = "";
+        int n = d.lines.size();
+        for (int i = 0; i < n; i++) {
+            str += d.lines.get(i).toString();
+            if (i < n - 1) {
+                str += Document.eol;
+            }
+        }
+        return str;
+    }
+
+    /**
+     * Construit un document d'une taille approximative donnée
+     * @param chars Nombre de caractères visé
+     * @return Document rempli de lignes de 60 caractères
+     */
+    protected static Document build(int chars) {
+        Document d = new Document();
+        LineInterface l = d.getLine();
+        int n = 0;
+        while (n < chars) {
+            String text = String.format("%08d bla bla bla bla bla bla bla bla bla bla bla bla bla", n);
+            l.setText(text);
+            n += text.length();
+            if (n < chars) {
+                l = d.insertLine();
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Méthode principale
+     * @param args Arguments de la ligne de commande (ignorés)
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    public static void main(String[] args) throws IOException {
+        Writer sink = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                /* Nothing */
+            }
+
+            @Override
+            public void flush() {
+                /* Nothing */
+            }
+
+            @Override
+            public void close() {
+                /* Nothing */
+            }
+        };
+        System.out.println("Taille\tAncien (ms)\ttoString (ms)\twriteTo (ms)");
+        for (int size = 1 << 16; size <= 1 << 23; size <<= 1) {
+            Document d = build(size);
+            // Chauffe
+            d.writeTo(new StringWriter());
+
+            String legacy = "-";
+            if (size <= LEGACY_LIMIT) {
+                long t0 = System.nanoTime();
+                String s = legacyToString(d);
+                legacy = String.valueOf((System.nanoTime() - t0) / 1000000);
+                if (!s.equals(d.toString())) {
+                    throw new IllegalStateException("Rendus différents");
+                }
+            }
+
+            long t1 = System.nanoTime();
+            d.toString();
+            long t2 = System.nanoTime();
+            d.writeTo(sink);
+            long t3 = System.nanoTime();
+
+            System.out.println((size >> 10) + " Ko\t" + legacy + "\t\t"
+                    + (t2 - t1) / 1000000 + "\t\t" + (t3 - t2) / 1000000);
+        }
+    }
+
+}
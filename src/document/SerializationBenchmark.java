@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mesure de la taille et du temps de sérialisation d'un document
+ * <p>
+ * Compare la forme sérialisée de {@link Document} à la sérialisation Java par
+ * défaut d'une liste d'objets lignes, telle qu'elle était envoyée par RMI
+ * auparavant.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class SerializationBenchmark {
+
+    /**
+     * Ligne sérialisée par défaut, comme l'ancienne classe {@link Line}
+     */
+    protected static class LegacyLine implements Serializable {
+
+        protected String text;
+
+        protected LegacyLine(String _text) {
+            text = _text;
+        }
+    }
+
+    /**
+     * Document sérialisé par défaut, comme l'ancienne classe {@link Document}
+     */
+    protected static class LegacyDocument implements Serializable {
+
+        protected List<LegacyLine> lines = new ArrayList();
+        protected LegacyLine currentLine;
+        protected int currentLineNumber;
+    }
+
+    /**
+     * Nombre de répétitions de chaque mesure
+     */
+    static protected final int RUNS = 10;
+
+    /**
+     * Sérialise un objet
+     * @param o Objet à sérialiser
+     * @return Octets produits
+     * @throws IOException Si une erreur survient lors de l'écriture
+     */
+    protected static byte[] write(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Désérialise un objet
+     * @param bytes Octets à lire
+     * @return Objet lu
+     * @throws IOException Si une erreur survient lors de la lecture
+     * @throws ClassNotFoundException Si la classe de l'objet est inconnue
+     */
+    protected static Object read(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        Object o = in.readObject();
+        in.close();
+        return o;
+    }
+
+    /**
+     * Mesure et affiche la taille et les temps d'écriture et de lecture
+     * @param label Nom de la forme mesurée
+     * @param o Objet à sérialiser
+     * @throws IOException Si une erreur survient lors des entrées/sorties
+     * @throws ClassNotFoundException Si la classe de l'objet est inconnue
+     */
+    protected static void measure(String label, Object o) throws IOException, ClassNotFoundException {
+        byte[] bytes = write(o);
+        read(bytes);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            bytes = write(o);
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            read(bytes);
+        }
+        long t2 = System.nanoTime();
+        System.out.println(label + "\t" + bytes.length + "\t\t"
+                + (t1 - t0) / RUNS / 1000000 + "\t\t" + (t2 - t1) / RUNS / 1000000);
+    }
+
+    /**
+     * Méthode principale
+     * @param args Nombre de lignes du document (optionnel, 200000 par défaut)
+     * @throws IOException Si une erreur survient lors des entrées/sorties
+     * @throws ClassNotFoundException Si une classe est inconnue
+     */
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        Document d = new Document();
+        LegacyDocument legacy = new LegacyDocument();
+        LineInterface l = d.getLine();
+        for (int i = 0; i < n; i++) {
+            String text = "Ligne " + i + " du document de test, avec un peu de texte";
+            l.setText(text);
+            legacy.lines.add(new LegacyLine(text));
+            if (i < n - 1) {
+                l = d.insertLine();
+            }
+        }
+        legacy.currentLine = legacy.lines.get(0);
+
+        System.out.println(n + " lignes");
+        System.out.println("Format\t\tOctets\t\tÉcriture (ms)\tLecture (ms)");
+        measure("Par défaut", legacy);
+        measure("Document", d);
+        // Codée au premier envoi, puis recopiée
+        measure("Version figée", d.snapshot());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+import java.util.Random;
+
+/**
+ * Mesure du temps de capture d'une version figée d'un document de grande
+ * taille
+ * <p>
+ * Compare la première capture (recopie de tout le document) aux captures
+ * suivantes, qui ne rejouent que les lignes modifiées entre-temps.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class SnapshotBenchmark {
+
+    /**
+     * Nombre de répétitions de chaque mesure
+     */
+    static protected final int RUNS = 20;
+
+    /**
+     * Méthode principale
+     * @param args Nombre de lignes du document (optionnel, 1000000 par défaut)
+     */
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        Document d = new Document();
+        LineInterface l = d.getLine();
+        for (int i = 0; i < n; i++) {
+            l.setText("Ligne " + i + " du document de test, avec un peu de texte");
+            if (i < n - 1) {
+                l = d.insertLine();
+            }
+        }
+        System.out.println(n + " lignes");
+
+        long t0 = System.nanoTime();
+        d.snapshot();
+        System.out.println("Première capture: " + (System.nanoTime() - t0) / 1000000 + " ms");
+
+        Random random = new Random(0);
+        System.out.println("Lignes modifiées\tCapture (µs)");
+        for (int changes = 1; changes <= 10000; changes *= 10) {
+            long total = 0;
+            for (int run = 0; run < RUNS; run++) {
+                for (int i = 0; i < changes; i++) {
+                    d.selectLine(random.nextInt(n)).setText("Ligne modifiée " + run + "/" + i);
+                }
+                long t1 = System.nanoTime();
+                d.snapshot();
+                total += System.nanoTime() - t1;
+            }
+            System.out.println(changes + "\t\t\t" + total / RUNS / 1000);
+        }
+    }
+
+}
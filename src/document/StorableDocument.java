@@ -15,17 +15,79 @@
  */
 package document;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Document associé à un fichier texte
+ * <p>
+ * Remarque: le codage des caractères du fichier est fixé par la propriété
+ * système <code>enshare.charset</code> (UTF-8 par défaut).</p>
+ * <p>
+ * La sauvegarde écrit dans un fichier temporaire qui remplace ensuite le
+ * fichier d'un seul coup: une interruption ne laisse jamais un fichier à
+ * moitié écrit. Si la propriété système <code>enshare.save.fsync</code> est
+ * vraie, les données sont de plus forcées sur le disque avant le
+ * remplacement.</p>
  *
  * @author Gwénolé Lecorvé
  */
-public class StorableDocument implements Storable {
+public class StorableDocument implements Storable, Closeable {
+
+    /**
+     * Nom de la propriété système qui fixe le codage des fichiers
+     */
+    static public final String CHARSET_PROPERTY = "enshare.charset";
+
+    /**
+     * Codage des caractères des fichiers
+     */
+    static protected final Charset CHARSET = Charset.forName(System.getProperty(CHARSET_PROPERTY, "UTF-8"));
+
+    /**
+     * Nom de la propriété système qui force l'écriture sur le disque à
+     * chaque sauvegarde
+     */
+    static public final String FSYNC_PROPERTY = "enshare.save.fsync";
+
+    /**
+     * Vrai si chaque sauvegarde est forcée sur le disque
+     */
+    static protected final boolean FSYNC = Boolean.getBoolean(FSYNC_PROPERTY);
+
+    /**
+     * Taille (en octets) à partir de laquelle un fichier est projeté en
+     * mémoire plutôt que lu par blocs
+     */
+    static protected final long MAP_THRESHOLD = 1 << 20;
+
+    /**
+     * Taille (en octets) des blocs lus, et des fenêtres de projection
+     */
+    static protected final int BLOCK_SIZE = 1 << 16;
+    static protected final int WINDOW_SIZE = 1 << 30;
 
     /**
      *
@@ -34,6 +96,19 @@ public class StorableDocument implements Storable {
 
     private DocumentInterface storedDocument;
 
+    /**
+     * Date de modification et taille du fichier lors de sa dernière lecture
+     * ou écriture (-1 si inconnues)
+     */
+    private volatile long fileModified = -1;
+    private volatile long fileSize = -1;
+
+    /**
+     * Historique des sauvegardes (null tant qu'il n'est pas utilisé)
+     */
+    private DocumentHistory history;
+    private final Object historyLock = new Object();
+
     /**
      * Constructeur à partir d'un chemin de fichier
      * <p>Remarque: charge le document.</p>
@@ -43,7 +118,7 @@ public class StorableDocument implements Storable {
      */
     public StorableDocument(String _path) throws FileNotFoundException, IOException {
         path = _path;
-        storedDocument = new Document();
+        storedDocument = DocumentFactory.newDocument();
         load();
     }
 
@@ -60,6 +135,17 @@ public class StorableDocument implements Storable {
         save();
     }
 
+    /**
+     * Constructeur sans chargement ni sauvegarde, pour les sous-classes qui
+     * ont à s'initialiser avant de lire ou d'écrire le fichier
+     * @param doc Document stocké
+     * @param _path Chemin du fichier
+     */
+    protected StorableDocument(DocumentInterface doc, String _path) {
+        path = _path;
+        storedDocument = doc;
+    }
+
     @Override
     public Object getStored() {
         return storedDocument;
@@ -81,6 +167,19 @@ public class StorableDocument implements Storable {
         storedDocument = d;
     }
 
+    /**
+     * Met à jour le document à partir du contenu d'un autre document (aucune
+     * sauvegarde)
+     * <p>Remarque: contrairement à {@link #setDocument(DocumentInterface)},
+     * le document stocké est conservé et seules les lignes différentes sont
+     * modifiées, ce qui préserve le partage avec ses versions figées.</p>
+     * @param d Interface du document source
+     * @return Script d'édition appliqué au document stocké
+     */
+    public EditScript update(DocumentInterface d) {
+        return storedDocument.fromDocument(d);
+    }
+
     @Override
     public String getPath() {
         return path;
@@ -92,15 +191,190 @@ public class StorableDocument implements Storable {
      */
     protected void setPath(String _path) {
         path = _path;
+        synchronized (historyLock) {
+            closeHistory();
+        }
+    }
+
+    /**
+     * Retourne l'historique des sauvegardes du fichier
+     * @return Historique, null s'il est désactivé (voir
+     * {@link DocumentHistory#HISTORY_PROPERTY})
+     */
+    public DocumentHistory getHistory() {
+        if (!DocumentHistory.ENABLED) {
+            return null;
+        }
+        synchronized (historyLock) {
+            if (history == null) {
+                history = new DocumentHistory(DocumentHistory.pathOf(getPath()));
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Ajoute un contenu sauvegardé à l'historique
+     * <p>Remarque: un échec est seulement journalisé, le fichier étant déjà
+     * écrit.</p>
+     * @param content Contenu sauvegardé
+     */
+    protected void recordRevision(DocumentInterface content) {
+        recordRevision(null, null, content.snapshot());
+    }
+
+    /**
+     * Ajoute un contenu sauvegardé à l'historique, à partir des modifications
+     * faites depuis une version
+     * <p>Remarque: voir {@link DocumentHistory#append(DocumentSnapshot, List, DocumentSnapshot)}.</p>
+     * @param base Version sur laquelle les modifications ont été faites (ou
+     * null)
+     * @param changes Modifications, dans l'ordre (null si inconnues)
+     * @param content Contenu sauvegardé
+     */
+    protected void recordRevision(DocumentSnapshot base, List<DocumentChange> changes, DocumentSnapshot content) {
+        DocumentHistory h = getHistory();
+        if (h == null) {
+            return;
+        }
+        try {
+            h.append(base, changes, content);
+        } catch (IOException ex) {
+            Logger.getLogger(StorableDocument.class.getName()).log(Level.WARNING, "Historique de " + getPath() + " non mis à jour", ex);
+        }
+    }
+
+    /**
+     * Ferme l'historique s'il est ouvert
+     */
+    private void closeHistory() {
+        if (history != null) {
+            try {
+                history.close();
+            } catch (IOException ex) {
+                Logger.getLogger(StorableDocument.class.getName()).log(Level.WARNING, null, ex);
+            }
+            history = null;
+        }
     }
 
     @Override
     public void save() throws IOException {
-        FileWriter fw = new FileWriter(getPath());
-        System.out.println("Save ->" + storedDocument.toString());
-        fw.write(storedDocument.toString());
-        fw.flush();
-        fw.close();
+        write(storedDocument);
+        recordRevision(storedDocument);
+    }
+
+    /**
+     * Prépare une sauvegarde différée: fige la version actuelle du document
+     * <p>Remarque: à appeler dans le fil d'exécution qui modifie le document;
+     * la version obtenue est ensuite écrite par {@link #save(DocumentSnapshot)},
+     * éventuellement dans un autre fil.</p>
+     * @return Version figée à sauvegarder
+     */
+    public DocumentSnapshot prepareSave() {
+        return storedDocument.snapshot();
+    }
+
+    /**
+     * Sauvegarde une version figée du document
+     * <p>Remarque: la version n'est pas modifiée par les éditions suivantes du
+     * document, elle peut donc être écrite sans bloquer celles-ci.</p>
+     * @param version Version figée du document
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque.
+     */
+    public void save(DocumentSnapshot version) throws IOException {
+        write(version);
+        recordRevision(version);
+    }
+
+    /**
+     * Écrit un contenu dans le fichier, en remplaçant celui-ci d'un seul coup
+     * @param content Document à écrire
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque.
+     */
+    protected void write(DocumentInterface content) throws IOException {
+        Path target = Paths.get(getPath()).toAbsolutePath();
+        Path dir = target.getParent();
+        Path tmp = null;
+        FileChannel channel = null;
+        // Droits par défaut (umask), contrairement à Files.createTempFile
+        while (channel == null) {
+            tmp = dir.resolve("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            } catch (java.nio.file.FileAlreadyExistsException ex) {
+                // Nom déjà pris: en tirer un autre
+            }
+        }
+        try {
+            try {
+                Writer writer = Channels.newWriter(channel, CHARSET.newEncoder(), BLOCK_SIZE);
+                content.writeTo(writer);
+                writer.flush();
+                if (FSYNC) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            if (Files.exists(target)) {
+                // Un fichier remplacé garde ses droits
+                try {
+                    Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ex) {
+                    // Système de fichiers sans droits POSIX
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        stamp(target);
+        if (FSYNC) {
+            syncDirectory(dir);
+        }
+    }
+
+    /**
+     * Retient la date de modification et la taille du fichier
+     */
+    private void stamp(Path file) throws IOException {
+        fileModified = Files.getLastModifiedTime(file).toMillis();
+        fileSize = Files.size(file);
+    }
+
+    /**
+     * Teste si le fichier a été modifié (ou supprimé) depuis sa dernière
+     * lecture ou écriture par ce document, donc par un autre programme
+     * <p>Remarque: seules la date de modification et la taille sont
+     * comparées, le fichier n'est pas lu.</p>
+     * @return Vrai si le fichier a changé, faux sinon
+     */
+    public boolean isFileChanged() {
+        File file = new File(getPath());
+        return file.lastModified() != fileModified || file.length() != fileSize;
+    }
+
+    /**
+     * Force sur le disque l'entrée d'un fichier remplacé dans son répertoire
+     * <p>Remarque: sans effet sur les systèmes qui ne le permettent pas.</p>
+     * @param dir Répertoire
+     */
+    private static void syncDirectory(Path dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            // Répertoire non ouvrable comme un fichier (Windows)
+        }
     }
 
     @Override
@@ -109,16 +383,133 @@ public class StorableDocument implements Storable {
         save();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>Remarque: le fichier est décodé et découpé en lignes au fil de la
+     * lecture, sans construire son texte entier. Un document vierge (premier
+     * chargement) est rempli ligne à ligne, sans liste intermédiaire ni
+     * comparaison; sinon, seules les lignes qui diffèrent du document actuel
+     * sont modifiées.</p>
+     */
     @Override
     public void load() throws FileNotFoundException, IOException {
-        String str = "";
-        File file = new File(getPath()); //for ex foo.txt
-        FileReader reader = new FileReader(file);
-        char[] chars = new char[(int) file.length()];
-        reader.read(chars);
-        str = new String(chars);
-        reader.close();
-        storedDocument.fromString(str);
+        if (storedDocument instanceof Document && storedDocument.size() == 1 && storedDocument.length() == 0) {
+            final Document d = (Document) storedDocument;
+            read(new LineSplitter(Document.eol, new LineSplitter.Sink() {
+                private boolean first = true;
+
+                @Override
+                public void line(String text) {
+                    if (first) {
+                        // La ligne vide du document vierge reçoit la première ligne
+                        d.setLineText(0, text);
+                        first = false;
+                    } else {
+                        d.insertLineAt(d.size(), d.newLine(text));
+                    }
+                }
+            }));
+        } else {
+            storedDocument.fromLines(readLines());
+        }
+    }
+
+    /**
+     * Lit les lignes du fichier
+     * <p>Remarque: les fichiers volumineux sont projetés en mémoire par
+     * fenêtres; les autres sont lus par blocs.</p>
+     * @return Contenus des lignes, découpés comme par
+     * {@link DocumentInterface#fromString(String)}
+     * @throws FileNotFoundException Si le fichier n'existe pas
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    protected List<String> readLines() throws FileNotFoundException, IOException {
+        return read(new LineSplitter(Document.eol));
+    }
+
+    /**
+     * Lit le fichier et le découpe en lignes
+     * @param splitter Découpage en lignes, terminé par cette méthode
+     * @return Lignes découpées (vide si elles sont remises au récepteur du
+     * découpage)
+     * @throws FileNotFoundException Si le fichier n'existe pas
+     * @throws IOException Si une erreur survient lors de la lecture
+     */
+    private List<String> read(LineSplitter splitter) throws FileNotFoundException, IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(getPath()), StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException(getPath());
+        }
+        try {
+            stamp(Paths.get(getPath()));
+            CharsetDecoder decoder = CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                long position = 0;
+                while (position < size) {
+                    long window = Math.min(WINDOW_SIZE, size - position);
+                    ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                    boolean last = (position + window == size);
+                    decode(decoder, bytes, chars, splitter, last);
+                    // Les octets d'un caractère coupé par la fenêtre sont relus avec la suivante
+                    position += bytes.position();
+                    if (!last && bytes.position() == 0) {
+                        throw new IOException("Fichier illisible: " + getPath());
+                    }
+                }
+            } else {
+                ByteBuffer bytes = ByteBuffer.allocate(BLOCK_SIZE);
+                boolean last = false;
+                while (!last) {
+                    last = (channel.read(bytes) < 0);
+                    bytes.flip();
+                    decode(decoder, bytes, chars, splitter, last);
+                    bytes.compact();
+                }
+            }
+            decoder.flush(chars);
+            chars.flip();
+            splitter.feed(chars);
+            return splitter.finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Décode des octets et transmet les caractères obtenus au découpage
+     * @param decoder Décodeur du codage des fichiers
+     * @param bytes Octets à décoder (ceux d'un caractère incomplet restent)
+     * @param chars Tampon de caractères (vide)
+     * @param splitter Découpage en lignes
+     * @param last Vrai si aucun octet ne suit
+     */
+    private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, LineSplitter splitter, boolean last) {
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, last);
+            chars.flip();
+            splitter.feed(chars);
+            chars.clear();
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Libère les ressources associées au fichier, avant d'oublier le document
+     * <p>Remarque: aucune sauvegarde; seul l'historique est fermé pour un
+     * simple fichier.</p>
+     * @throws IOException Si une erreur survient lors de la fermeture
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (historyLock) {
+            closeHistory();
+        }
     }
 
     /**
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package document;
+
+/**
+ * Document dont les lignes sont stockées dans un arbre équilibré
+ * <p>
+ * Remarque: l'insertion, la suppression et la sélection d'une ligne coûtent
+ * O(log n) quelle que soit sa position, ce qui convient aux très longs
+ * documents modifiés près du début. Il en va de même pour la conversion entre
+ * positions de caractères et numéros de ligne.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class TreeDocument extends Document {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructeur par défaut, crée un document vierge (une ligne vide)
+     */
+    public TreeDocument() {
+        super(new LineTree(eol.length()));
+    }
+
+    @Override
+    protected LineOffsetIndex createOffsetIndex() {
+        // L'arbre agrège lui-même la longueur des lignes de chaque sous-arbre
+        return (LineTree) lines;
+    }
+
+}
@@ -16,10 +16,12 @@
 package enshare.client;
 
 import document.DocumentInterface;
+import document.DocumentPatch;
 import document.ObservableDocument;
 import enshare.AbstractIdentifiable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.nio.file.FileAlreadyExistsException;
 import java.rmi.Naming;
@@ -27,6 +29,7 @@ import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
 
 /**
  * Classe abstraite du contrôleur d'un client
@@ -183,8 +186,54 @@ public abstract class AbstractClientController extends AbstractIdentifiable impl
     protected abstract void newDocument(String _fileName, boolean _isLocked) throws FileAlreadyExistsException, IOException;
 
     @Override
-    public synchronized void updateDocument(String sourceUrl, DocumentInterface d) throws RemoteException {
-        observedDocument.setDocument(d);
+    public void updateDocument(String sourceUrl, final DocumentInterface d) throws RemoteException {
+        runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AbstractClientController.this) {
+                    // Seules les lignes modifiées sont notifiées aux observateurs
+                    observedDocument.updateDocument(d);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean patchDocument(String sourceUrl, final DocumentPatch patch) throws RemoteException {
+        final boolean[] applied = new boolean[1];
+        runOnDispatchThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AbstractClientController.this) {
+                    applied[0] = observedDocument.patchDocument(patch);
+                }
+            }
+        });
+        return applied[0];
+    }
+
+    /**
+     * Modifie le document dans le fil d'exécution de l'interface graphique,
+     * qui le lit sans verrou, et attend la fin de la modification
+     * <p>Remarque: le moniteur du contrôleur n'est pas détenu pendant
+     * l'attente, l'interface graphique pouvant elle-même l'attendre.</p>
+     *
+     * @param modification Modification du document
+     * @throws RemoteException Si la modification est interrompue ou échoue
+     */
+    protected void runOnDispatchThread(Runnable modification) throws RemoteException {
+        if (SwingUtilities.isEventDispatchThread()) {
+            modification.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(modification);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Mise à jour du document interrompue", ex);
+        } catch (InvocationTargetException ex) {
+            throw new RemoteException("Mise à jour du document impossible", ex.getCause());
+        }
     }
     
     @Override
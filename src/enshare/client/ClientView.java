@@ -15,6 +15,7 @@
  */
 package enshare.client;
 
+import document.DocumentChange;
 import document.ObservableDocument;
 import enshare.server.Server;
 import enshare.server.ServerInterface;
@@ -25,12 +26,15 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.file.FileAlreadyExistsException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.text.BadLocationException;
 
 /**
@@ -84,6 +88,13 @@ public class ClientView extends javax.swing.JFrame implements Observer {
     public ClientView(AbstractClientController _controller) {
         controller = _controller;
         controller.getObservedDocument().addObserver(this);
+        // Notifications regroupées et exécutées dans le fil de l'interface graphique
+        controller.getObservedDocument().setDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                SwingUtilities.invokeLater(r);
+            }
+        });
         initComponents();
         disableReading();
         disableWriting();
@@ -411,6 +422,8 @@ public class ClientView extends javax.swing.JFrame implements Observer {
 
         int caretPos = textArea.getCaretPosition();
         try {
+            // Position comptée dans le texte affiché, dont les fins de ligne
+            // sont toujours "\n" (quelle que soit Document.eol)
             lineNum = textArea.getLineOfOffset(caretPos);
             controller.selectLine(lineNum);
         } catch (BadLocationException ex) {
@@ -474,10 +487,12 @@ public class ClientView extends javax.swing.JFrame implements Observer {
 
     /**
      * Met à jour le document d'après le contenu de la zone de texte
+     * <p>Remarque: la zone de texte n'est pas réaffichée (curseur et saisie
+     * en cours conservés).</p>
      */
     public void setDocumentFromTextArea() {
         if (controller.hasDocument()) {
-            controller.getObservedDocument().getDocument().fromString(textArea.getText());
+            controller.getObservedDocument().fromText(textArea.getText());
         }
     }
 
@@ -492,6 +507,60 @@ public class ClientView extends javax.swing.JFrame implements Observer {
         repaint();
     }
 
+    /**
+     * Reporte dans la zone de texte un lot de modifications du document
+     * <p>
+     * Remarque: la zone de texte doit refléter le document avant le lot (zone
+     * en lecture seule). Les fins de ligne de la zone de texte sont des
+     * "\n".</p>
+     *
+     * @param changes Modifications, dans l'ordre
+     * @return Vrai si le lot a été reporté, faux s'il faut tout réafficher
+     */
+    protected boolean applyChanges(List<DocumentChange> changes) {
+        javax.swing.text.Document text = textArea.getDocument();
+        int lines = textArea.getLineCount();
+        try {
+            for (DocumentChange c : changes) {
+                int i = c.getIndex();
+                switch (c.getType()) {
+                    case INSERTED:
+                        if (lines == 0) {
+                            text.insertString(0, c.getText(), null);
+                        } else if (i < lines) {
+                            text.insertString(textArea.getLineStartOffset(i), c.getText() + "\n", null);
+                        } else {
+                            text.insertString(text.getLength(), "\n" + c.getText(), null);
+                        }
+                        lines++;
+                        break;
+                    case REMOVED:
+                        if (lines == 1) {
+                            text.remove(0, text.getLength());
+                        } else if (i < lines - 1) {
+                            int start = textArea.getLineStartOffset(i);
+                            text.remove(start, textArea.getLineStartOffset(i + 1) - start);
+                        } else {
+                            int start = textArea.getLineStartOffset(i) - 1;
+                            text.remove(start, text.getLength() - start);
+                        }
+                        lines--;
+                        break;
+                    case CHANGED:
+                        int start = textArea.getLineStartOffset(i);
+                        textArea.replaceRange(c.getText(), start, start + c.getOldText().length());
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (BadLocationException ex) {
+            return false;
+        }
+        // En cas de divergence, mieux vaut tout réafficher
+        return textArea.getLineCount() == Math.max(1, lines);
+    }
+
     /**
      * Change le titre de la fenêtre
      * <p>
@@ -525,7 +594,10 @@ public class ClientView extends javax.swing.JFrame implements Observer {
     public void update(Observable observable, Object o) {
         ObservableDocument od = (ObservableDocument) observable;
         if (od.hasDocument()) {
-            setTextArea(od.getDocument().toString());
+            // En lecture seule, seules les lignes modifiées sont reportées
+            if (textArea.isEditable() || !(o instanceof List) || !applyChanges((List<DocumentChange>) o)) {
+                setTextArea(od.getDocument().toString());
+            }
             enableReading();
         } else {
             disableReading();
@@ -565,7 +637,8 @@ public class ClientView extends javax.swing.JFrame implements Observer {
             java.util.logging.Logger.getLogger(ClientView.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
         }
         //</editor-fold>
-        ServerInterface server = new Server("rmi://localhost:1099/enshare_server", ".");
+        // Passer par le talon RMI: le client reçoit des copies des documents, comme à distance
+        ServerInterface server = (ServerInterface) UnicastRemoteObject.toStub(new Server("rmi://localhost:1099/enshare_server", "."));
         AbstractClientController controller = new CentralizedClientController("rmi://localhost:1099/enshare_client", server);
         ClientView editor = new ClientView(controller);
     }
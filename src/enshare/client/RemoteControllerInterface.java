@@ -16,6 +16,7 @@
 package enshare.client;
 
 import document.DocumentInterface;
+import document.DocumentPatch;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
@@ -36,6 +37,18 @@ public interface RemoteControllerInterface extends Remote {
      */
     public void updateDocument(String sourceUrl, DocumentInterface d) throws RemoteException;
 
+    /**
+     * Met à jour la copie du document courant par un correctif, sans recevoir
+     * le document entier
+     *
+     * @param sourceUrl URL du processus expéditeur
+     * @param patch Modifications depuis la version de départ du correctif
+     * @return Vrai si le correctif a été appliqué, faux si la copie n'est pas
+     * la version de départ (le document entier doit alors être envoyé)
+     * @throws RemoteException Si un problème en rapport avec RMI survient
+     */
+    public boolean patchDocument(String sourceUrl, DocumentPatch patch) throws RemoteException;
+
     /**
      * Réceptionne une notification de déconnexion
      *
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import document.DocumentInterface;
+import document.DocumentPatch;
+import enshare.client.RemoteControllerInterface;
+import java.lang.management.ManagementFactory;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * File des notifications envoyées à un client, vidée par un fil d'exécution
+ * dédié
+ * <p>
+ * Mettre une notification en file ne bloque jamais: un client lent ou
+ * bloqué ne ralentit ni l'écrivain ni les autres clients. Chaque
+ * notification porte une version complète du document: une nouvelle version
+ * d'un document déjà en attente remplace l'ancienne, à sa place dans la file.
+ * Un client lent ne reçoit donc que les versions récentes, quel que soit le
+ * nombre de sauvegardes intermédiaires. La file ne contient ainsi jamais
+ * plus d'une notification par document ouvert par le client, et aucune n'est
+ * abandonnée: au-delà de sa capacité, la plus ancienne notification encore
+ * envoyable en correctif libère celui-ci et sera envoyée entière.</p>
+ * <p>
+ * Le dernier état de chaque document connu du client est retenu: une
+ * nouvelle version lui est envoyée sous forme de correctif (voir
+ * {@link DocumentPatch}), et entière seulement si le client ne peut pas
+ * l'appliquer.</p>
+ * <p>
+ * Les mesures de la file sont publiées par JMX sous le nom
+ * <code>enshare:type=ClientChannel,client="url"</code>.</p>
+ * <p>
+ * Remarque: la capacité de la file (en documents en attente d'un envoi en
+ * correctif) est fixée par la propriété
+ * système <code>enshare.notify.queue</code> (16 par défaut), et le délai
+ * minimal entre deux envois à un même client par
+ * <code>enshare.notify.interval</code> (en ms, 0 par défaut); les versions
+ * reçues pendant ce délai sont fusionnées.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class ClientChannel implements ClientChannelMXBean {
+
+    /**
+     * Nom de la propriété système qui fixe la capacité de la file
+     */
+    static public final String QUEUE_PROPERTY = "enshare.notify.queue";
+
+    /**
+     * Capacité de la file
+     */
+    static protected final int CAPACITY = Math.max(1, Integer.getInteger(QUEUE_PROPERTY, 16));
+
+    /**
+     * Nom de la propriété système qui fixe le délai minimal entre deux envois
+     * à un client
+     */
+    static public final String INTERVAL_PROPERTY = "enshare.notify.interval";
+
+    /**
+     * Délai minimal entre deux envois à un client (en ns)
+     */
+    static protected final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(Math.max(0, Long.getLong(INTERVAL_PROPERTY, 0)));
+
+    /**
+     * Interface de l'objet prévenu de la disparition d'un client
+     */
+    public interface Listener {
+
+        /**
+         * Appelée quand le client n'est plus joignable
+         * @param clientUrl URL du client
+         */
+        public void clientLost(String clientUrl);
+    }
+
+    /**
+     * Notification en attente
+     */
+    private static final class Update {
+
+        String sourceUrl;
+        final String documentName;
+        DocumentInterface version;
+        DocumentPatch patch;
+        boolean whole;
+        long generation;
+        final long enqueued;
+
+        Update(String _sourceUrl, String _documentName, DocumentInterface _version, DocumentPatch _patch) {
+            sourceUrl = _sourceUrl;
+            documentName = _documentName;
+            version = _version;
+            patch = _patch;
+            enqueued = System.nanoTime();
+        }
+    }
+
+    /**
+     * URL du client
+     */
+    protected final String clientUrl;
+
+    /**
+     * Contrôleur distant du client
+     */
+    protected final RemoteControllerInterface controller;
+
+    /**
+     * Objet prévenu de la disparition du client
+     */
+    protected final Listener listener;
+
+    /**
+     * Notifications en attente, par nom de document, de la plus ancienne à la
+     * plus récente
+     */
+    private final Map<String, Update> pending = new LinkedHashMap();
+
+    /**
+     * Dernière version de chaque document connue du client
+     */
+    private final Map<String, DocumentInterface> known = new HashMap();
+
+    /**
+     * Génération de la version connue de chaque document, incrémentée quand
+     * elle est oubliée ou fixée par le serveur: une notification envoyée
+     * entre-temps ne la remplace pas
+     */
+    private final Map<String, Long> generations = new HashMap();
+
+    /**
+     * Date au plus tôt du prochain envoi (en ns, voir {@link System#nanoTime()})
+     */
+    private long nextSend = System.nanoTime();
+
+    /**
+     * Fil d'exécution des envois
+     */
+    private final Thread sender;
+
+    /**
+     * Nom JMX des mesures (null si elles ne sont pas publiées)
+     */
+    private ObjectName name;
+
+    /**
+     * Vrai une fois la file fermée
+     */
+    private boolean closed;
+
+    /**
+     * Mesures
+     */
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong patched = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Constructeur
+     * <p>Remarque: démarre le fil d'exécution des envois et publie les
+     * mesures.</p>
+     * @param _clientUrl URL du client
+     * @param _controller Contrôleur distant du client
+     * @param _listener Objet prévenu de la disparition du client
+     */
+    public ClientChannel(String _clientUrl, RemoteControllerInterface _controller, Listener _listener) {
+        clientUrl = _clientUrl;
+        controller = _controller;
+        listener = _listener;
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "enshare-notify-" + clientUrl);
+        sender.setDaemon(true);
+        sender.start();
+        try {
+            name = new ObjectName("enshare:type=ClientChannel,client=" + ObjectName.quote(clientUrl));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException ex) {
+            Logger.getLogger(ClientChannel.class.getName()).log(Level.WARNING, "Mesures non publiées pour " + clientUrl, ex);
+            name = null;
+        }
+    }
+
+    /**
+     * Retourne le contrôleur distant du client
+     * @return Contrôleur
+     */
+    public RemoteControllerInterface getController() {
+        return controller;
+    }
+
+    /**
+     * Indique la version d'un document dont dispose le client (ouverture ou
+     * sauvegarde par le client lui-même)
+     * @param documentName Nom du document
+     * @param version Version figée du document
+     */
+    public synchronized void setKnownVersion(String documentName, DocumentInterface version) {
+        nextGeneration(documentName);
+        known.put(documentName, version);
+    }
+
+    /**
+     * Oublie la version d'un document fermé par le client
+     * @param documentName Nom du document
+     */
+    public synchronized void forget(String documentName) {
+        nextGeneration(documentName);
+        known.remove(documentName);
+        pending.remove(documentName);
+    }
+
+    /**
+     * Retourne la génération de la version connue d'un document
+     */
+    private long generation(String documentName) {
+        Long g = generations.get(documentName);
+        return (g == null) ? 0 : g;
+    }
+
+    /**
+     * Passe à la génération suivante de la version connue d'un document
+     */
+    private void nextGeneration(String documentName) {
+        generations.put(documentName, generation(documentName) + 1);
+    }
+
+    /**
+     * Met en file une nouvelle version d'un document, sans attendre son envoi
+     * @param sourceUrl URL de l'expéditeur
+     * @param documentName Nom du document
+     * @param version Version figée du document
+     * @param patch Correctif depuis la version précédente (ou null)
+     */
+    public void offer(String sourceUrl, String documentName, DocumentInterface version, DocumentPatch patch) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Update u = pending.get(documentName);
+            if (u != null) {
+                // Version périmée avant son envoi: remplacée par la nouvelle,
+                // correctif à recalculer depuis la version connue du client
+                u.sourceUrl = sourceUrl;
+                u.version = version;
+                u.patch = null;
+                coalesced.incrementAndGet();
+                return;
+            }
+            if (pending.size() >= CAPACITY) {
+                // File pleine: garder chaque document, mais envoyer le plus
+                // ancien en entier plutôt que de retenir son correctif
+                for (Update old : pending.values()) {
+                    if (!old.whole) {
+                        old.whole = true;
+                        old.patch = null;
+                        overflowed.incrementAndGet();
+                        break;
+                    }
+                }
+            }
+            pending.put(documentName, new Update(sourceUrl, documentName, version, patch));
+            notifyAll();
+        }
+    }
+
+    /**
+     * Attend la prochaine notification à envoyer
+     * @return Notification retirée de la file, null une fois la file fermée
+     */
+    private synchronized Update next() {
+        while (!closed) {
+            long delay = nextSend - System.nanoTime();
+            try {
+                if (pending.isEmpty()) {
+                    wait();
+                } else if (delay > 0) {
+                    // Les versions reçues d'ici là sont fusionnées
+                    TimeUnit.NANOSECONDS.timedWait(this, delay);
+                } else {
+                    Iterator<Update> it = pending.values().iterator();
+                    Update u = it.next();
+                    it.remove();
+                    u.generation = generation(u.documentName);
+                    return u;
+                }
+            } catch (InterruptedException ex) {
+                /* Nothing */
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Envoie les notifications en attente, jusqu'à la fermeture
+     */
+    private void sendLoop() {
+        Update u;
+        while ((u = next()) != null) {
+            try {
+                Logger.getLogger(ClientChannel.class.getName()).log(Level.FINE, "Notification du controleur " + clientUrl + " pour le document " + u.documentName);
+                if (send(u)) {
+                    patched.incrementAndGet();
+                } else {
+                    controller.updateDocument(u.sourceUrl, u.version);
+                }
+                synchronized (this) {
+                    // Document oublié ou rouvert pendant l'envoi: la version
+                    // fixée depuis prévaut
+                    if (!closed && generation(u.documentName) == u.generation) {
+                        known.put(u.documentName, u.version);
+                    }
+                }
+                long latency = System.nanoTime() - u.enqueued;
+                delivered.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                long max = maxLatency.get();
+                while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                    max = maxLatency.get();
+                }
+            } catch (ConnectException ex) {
+                // Client disparu
+                failures.incrementAndGet();
+                listener.clientLost(clientUrl);
+            } catch (RemoteException ex) {
+                failures.incrementAndGet();
+                System.err.println("ERREUR: Impossible de notifier le controleur " + clientUrl);
+                Logger.getLogger(ClientChannel.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            synchronized (this) {
+                nextSend = System.nanoTime() + INTERVAL;
+            }
+        }
+    }
+
+    /**
+     * Envoie une nouvelle version sous forme de correctif, si le client
+     * dispose d'une version précédente
+     * @return Vrai si le client a appliqué le correctif, faux si le document
+     * entier est à envoyer (notification marquée au-delà de la capacité de la
+     * file, ou version précédente inconnue ou rejetée)
+     */
+    private boolean send(Update u) throws RemoteException {
+        if (u.whole) {
+            return false;
+        }
+        DocumentInterface base;
+        synchronized (this) {
+            base = known.get(u.documentName);
+        }
+        if (base == null) {
+            return false;
+        }
+        DocumentPatch patch = u.patch;
+        if (patch == null || patch.getBaseSize() != base.size() || patch.getBaseHash() != base.getRootHash()) {
+            patch = DocumentPatch.between(base, u.version);
+        }
+        return controller.patchDocument(u.sourceUrl, patch);
+    }
+
+    /**
+     * Arrête les envois et retire les mesures
+     * <p>Remarque: les notifications encore en file sont abandonnées.</p>
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            known.clear();
+            generations.clear();
+            notifyAll();
+        }
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) {
+                Logger.getLogger(ClientChannel.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public String getClientUrl() {
+        return clientUrl;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return pending.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return CAPACITY;
+    }
+
+    @Override
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    @Override
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getPatched() {
+        return patched.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public double getAverageLatencyMillis() {
+        long n = delivered.get();
+        return n == 0 ? 0 : totalLatency.get() / 1e6 / n;
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+/**
+ * Mesures de l'envoi des notifications à un client, publiées par JMX
+ *
+ * @author Gwénolé Lecorvé
+ */
+public interface ClientChannelMXBean {
+
+    /**
+     * Retourne l'URL du client
+     * @return Chaîne de caractères
+     */
+    public String getClientUrl();
+
+    /**
+     * Retourne le nombre de notifications en attente d'envoi (une au plus par
+     * document)
+     * @return Entier
+     */
+    public int getQueueDepth();
+
+    /**
+     * Retourne le nombre de notifications en attente au-delà duquel les plus
+     * anciennes sont envoyées entières
+     * @return Entier
+     */
+    public int getQueueCapacity();
+
+    /**
+     * Retourne le nombre de notifications reçues par le client
+     * @return Entier
+     */
+    public long getDelivered();
+
+    /**
+     * Retourne le nombre de notifications envoyées sous forme de correctif
+     * (les autres portent le document entier)
+     * @return Entier
+     */
+    public long getPatched();
+
+    /**
+     * Retourne le nombre de notifications envoyées entières plutôt qu'en
+     * correctif, faute de place dans la file
+     * @return Entier
+     */
+    public long getOverflowed();
+
+    /**
+     * Retourne le nombre de notifications remplacées par une version plus
+     * récente du même document avant leur envoi
+     * @return Entier
+     */
+    public long getCoalesced();
+
+    /**
+     * Retourne le nombre de notifications dont l'envoi a échoué
+     * @return Entier
+     */
+    public long getFailures();
+
+    /**
+     * Retourne le délai moyen entre la mise en file d'une notification et sa
+     * réception par le client
+     * @return Millisecondes (0 si aucune notification reçue)
+     */
+    public double getAverageLatencyMillis();
+
+    /**
+     * Retourne le plus long délai entre la mise en file d'une notification et
+     * sa réception par le client
+     * @return Millisecondes
+     */
+    public double getMaxLatencyMillis();
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Surveillance des fichiers d'un répertoire
+ * <p>
+ * Les créations, modifications et suppressions de fichiers sont signalées à
+ * un {@link Listener}, dans un fil d'exécution dédié. Les fichiers cachés
+ * (dont le nom commence par un point), comme les fichiers temporaires des
+ * sauvegardes, sont ignorés.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DirectoryWatcher implements Closeable {
+
+    /**
+     * Interface de l'objet prévenu des changements du répertoire
+     */
+    public interface Listener {
+
+        /**
+         * Appelée quand un fichier apparaît (création, ou remplacement par
+         * renommage)
+         * @param name Nom du fichier
+         */
+        public void fileCreated(String name);
+
+        /**
+         * Appelée quand le contenu d'un fichier change
+         * @param name Nom du fichier
+         */
+        public void fileModified(String name);
+
+        /**
+         * Appelée quand un fichier disparaît
+         * @param name Nom du fichier
+         */
+        public void fileDeleted(String name);
+
+        /**
+         * Appelée quand des changements ont été perdus: tout le répertoire est
+         * à parcourir
+         */
+        public void changesLost();
+    }
+
+    /**
+     * Répertoire surveillé
+     */
+    protected final Path dir;
+
+    /**
+     * Objet prévenu des changements
+     */
+    protected final Listener listener;
+
+    /**
+     * Service de surveillance du système de fichiers
+     */
+    private final WatchService service;
+
+    /**
+     * Fil d'exécution de la surveillance
+     */
+    private final Thread thread;
+
+    /**
+     * Constructeur
+     * <p>Remarque: commence la surveillance.</p>
+     * @param dirName Répertoire à surveiller
+     * @param _listener Objet prévenu des changements
+     * @throws IOException Si le répertoire ne peut pas être surveillé
+     */
+    public DirectoryWatcher(String dirName, Listener _listener) throws IOException {
+        dir = Paths.get(dirName).toAbsolutePath();
+        listener = _listener;
+        service = FileSystems.getDefault().newWatchService();
+        dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "enshare-directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Attend et signale les changements, jusqu'à la fermeture
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException ex) {
+                return;
+            } catch (ClosedWatchServiceException ex) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    dispatch(event);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            if (!key.reset()) {
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.WARNING, "Répertoire " + dir + " plus surveillé");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Signale un changement
+     */
+    private void dispatch(WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            listener.changesLost();
+            return;
+        }
+        String name = ((Path) event.context()).getFileName().toString();
+        if (name.startsWith(".")) {
+            return;
+        }
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            listener.fileCreated(name);
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+            listener.fileModified(name);
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            listener.fileDeleted(name);
+        }
+    }
+
+    /**
+     * Arrête la surveillance
+     * @throws IOException Si une erreur survient lors de la fermeture
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+        thread.interrupt();
+    }
+
+}
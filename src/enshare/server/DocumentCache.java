@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import document.Document;
+import document.DocumentFactory;
+import document.DocumentInterface;
+import document.StorableDocument;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Documents partagés d'un répertoire, chargés à la demande
+ * <p>
+ * Les noms des documents sont connus sans lire les fichiers. Un document est
+ * chargé à sa première demande; au-delà d'un budget de caractères en mémoire,
+ * les documents inutilisés depuis le plus longtemps sont oubliés, puis
+ * rechargés s'ils sont de nouveau demandés.</p>
+ * <p>
+ * Remarque: le budget est fixé par la propriété système
+ * <code>enshare.cache.chars</code> (nombre de caractères, 64 Mi par
+ * défaut). La version figée gardée par chaque document pour ses envois et
+ * ses sauvegardes (voir {@link Document#getSnapshotFootprint()}) y est
+ * comptée.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentCache {
+
+    /**
+     * Nom de la propriété système qui fixe le budget de caractères en mémoire
+     */
+    static public final String BUDGET_PROPERTY = "enshare.cache.chars";
+
+    /**
+     * Interface de l'objet qui indique les documents à ne pas oublier
+     */
+    public interface Usage {
+
+        /**
+         * Teste si un document chargé est utilisé
+         * @param name Nom du document
+         * @param sd Document stocké
+         * @return Vrai si le document doit rester chargé, faux sinon
+         */
+        public boolean isInUse(String name, StorableDocument sd);
+    }
+
+    /**
+     * Répertoire des documents
+     */
+    protected final String dirName;
+
+    /**
+     * Séparateur de fichier dans un chemin d'accès
+     */
+    protected final String separator = System.getProperty("file.separator");
+
+    /**
+     * Nombre maximal de caractères des documents chargés
+     */
+    protected final long budget = Long.getLong(BUDGET_PROPERTY, 1 << 26);
+
+    /**
+     * Documents à ne pas oublier
+     */
+    protected final Usage usage;
+
+    /**
+     * Catalogue mis à jour à chaque chargement (ou null)
+     */
+    protected final DocumentCatalog catalog;
+
+    /**
+     * Noms de tous les documents
+     */
+    private final Set<String> names = new TreeSet();
+
+    /**
+     * Documents chargés, du moins au plus récemment demandé
+     */
+    private final LinkedHashMap<String, StorableDocument> loaded = new LinkedHashMap(16, 0.75f, true);
+
+    /**
+     * Constructeur
+     * @param _dirName Répertoire des documents
+     * @param _usage Objet qui indique les documents à ne pas oublier
+     * @param _catalog Catalogue mis à jour à chaque chargement (ou null)
+     */
+    public DocumentCache(String _dirName, Usage _usage, DocumentCatalog _catalog) {
+        dirName = _dirName;
+        usage = _usage;
+        catalog = _catalog;
+    }
+
+    /**
+     * Retourne le budget de caractères en mémoire
+     * @return Nombre de caractères
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Ajoute un nom de document, sans le charger
+     * @param name Nom du fichier dans le répertoire
+     */
+    public synchronized void addName(String name) {
+        names.add(name);
+    }
+
+    /**
+     * Ajoute un document déjà chargé
+     * @param name Nom du fichier dans le répertoire
+     * @param sd Document stocké
+     */
+    public synchronized void put(String name, StorableDocument sd) {
+        names.add(name);
+        loaded.put(name, sd);
+        trim(name);
+    }
+
+    /**
+     * Retire un document, en libérant ses ressources s'il est chargé
+     * @param name Nom du fichier
+     */
+    public synchronized void remove(String name) {
+        names.remove(name);
+        StorableDocument sd = loaded.remove(name);
+        if (sd != null) {
+            close(name, sd);
+        }
+    }
+
+    /**
+     * Teste si un nom de document est connu
+     * @param name Nom du fichier
+     * @return Vrai si le document existe, faux sinon
+     */
+    public synchronized boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Retourne les noms de tous les documents (aucun chargement)
+     * @return Liste des noms, par ordre alphabétique
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList(names);
+    }
+
+    /**
+     * Retourne un document, en le chargeant si besoin
+     * <p>Remarque: la lecture du fichier se fait hors du verrou du cache, les
+     * chargements de documents différents sont donc parallèles; si le même
+     * document est chargé deux fois en même temps, le premier chargé est
+     * gardé.</p>
+     * @param name Nom du fichier
+     * @return Document stocké, null si le nom est inconnu
+     * @throws FileNotFoundException Si le fichier a disparu
+     * @throws IOException Si une erreur survient lors de la lecture sur le disque
+     */
+    public StorableDocument get(String name) throws FileNotFoundException, IOException {
+        synchronized (this) {
+            StorableDocument sd = loaded.get(name);
+            if (sd != null || !names.contains(name)) {
+                return sd;
+            }
+        }
+        StorableDocument sd = DocumentFactory.newStorableDocument(dirName + separator + name);
+        synchronized (this) {
+            StorableDocument other = loaded.get(name);
+            if (other != null || !names.contains(name)) {
+                // Chargé ou retiré entre-temps
+                close(name, sd);
+                return other;
+            }
+            loaded.put(name, sd);
+            Logger.getLogger(DocumentCache.class.getName()).log(Level.INFO, "Document " + name + " chargé");
+            trim(name);
+        }
+        if (catalog != null) {
+            catalog.update(name, sd.getDocument());
+        }
+        return sd;
+    }
+
+    /**
+     * Retourne un document s'il est chargé
+     * @param name Nom du fichier
+     * @return Document stocké, null s'il n'est pas chargé
+     */
+    public synchronized StorableDocument getIfLoaded(String name) {
+        return loaded.get(name);
+    }
+
+    /**
+     * Retourne les documents chargés
+     * @return Table (copie) associant chaque nom à son document
+     */
+    public synchronized Map<String, StorableDocument> getLoaded() {
+        return Collections.unmodifiableMap(new LinkedHashMap(loaded));
+    }
+
+    /**
+     * Oublie les documents inutilisés depuis le plus longtemps, jusqu'à
+     * respecter le budget
+     */
+    public synchronized void trim() {
+        trim(null);
+    }
+
+    /**
+     * Oublie les documents inutilisés depuis le plus longtemps, sauf un
+     * @param kept Nom du document à garder (ou null)
+     */
+    protected void trim(String kept) {
+        long total = 0;
+        for (StorableDocument sd : loaded.values()) {
+            total += footprint(sd);
+        }
+        Iterator<Map.Entry<String, StorableDocument>> it = loaded.entrySet().iterator();
+        while (total > budget && it.hasNext()) {
+            Map.Entry<String, StorableDocument> entry = it.next();
+            if (entry.getKey().equals(kept) || usage.isInUse(entry.getKey(), entry.getValue())) {
+                continue;
+            }
+            it.remove();
+            total -= footprint(entry.getValue());
+            close(entry.getKey(), entry.getValue());
+            Logger.getLogger(DocumentCache.class.getName()).log(Level.INFO, "Document " + entry.getKey() + " déchargé");
+        }
+    }
+
+    /**
+     * Retourne la place occupée en mémoire par un document chargé
+     * @param sd Document stocké
+     * @return Nombre de caractères, plus la place de la version figée gardée
+     * pour les envois et les sauvegardes
+     */
+    protected static long footprint(StorableDocument sd) {
+        DocumentInterface d = sd.getDocument();
+        long chars = d.length();
+        if (d instanceof Document) {
+            chars += ((Document) d).getSnapshotFootprint();
+        }
+        return chars;
+    }
+
+    /**
+     * Libère les ressources d'un document oublié
+     */
+    private static void close(String name, StorableDocument sd) {
+        try {
+            sd.close();
+        } catch (IOException ex) {
+            Logger.getLogger(DocumentCache.class.getName()).log(Level.WARNING, "Document " + name, ex);
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import document.DocumentInterface;
+import document.LoggedStorableDocument;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Catalogue des documents d'un répertoire, conservé sur le disque
+ * <p>
+ * Pour chaque document, le catalogue retient la taille et la date de
+ * modification du fichier, ainsi que l'empreinte (voir
+ * {@link DocumentInterface#getRootHash()}) et le nombre de lignes de son
+ * contenu lorsqu'ils sont connus. Il est écrit dans
+ * <code>rep/.enshare/catalog</code> avec la date de modification du
+ * répertoire lors du dernier parcours (et non lors de l'écriture): au
+ * démarrage suivant, si le répertoire n'a pas changé depuis ce parcours, la
+ * liste des documents est reprise sans parcourir le répertoire ni lire un
+ * seul fichier.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class DocumentCatalog {
+
+    /**
+     * Nom du fichier du catalogue, dans le répertoire des journaux
+     */
+    static public final String FILE_NAME = "catalog";
+
+    /**
+     * Identification et version du format du fichier
+     */
+    static private final int MAGIC = 0x454e5343;
+    static private final int FORMAT = 1;
+
+    /**
+     * Description d'un document
+     */
+    public static final class Entry {
+
+        private final String name;
+        private final long size;
+        private final long modified;
+        private final long hash;
+        private final int lines;
+
+        /**
+         * Constructeur
+         * @param _name Nom du fichier
+         * @param _size Taille du fichier (en octets)
+         * @param _modified Date de modification du fichier (en ms)
+         * @param _hash Empreinte du contenu
+         * @param _lines Nombre de lignes du contenu (-1 si le contenu n'est pas
+         * connu)
+         */
+        public Entry(String _name, long _size, long _modified, long _hash, int _lines) {
+            name = _name;
+            size = _size;
+            modified = _modified;
+            hash = _hash;
+            lines = _lines;
+        }
+
+        /**
+         * Retourne le nom du fichier
+         * @return Nom dans le répertoire
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Retourne la taille du fichier
+         * @return Nombre d'octets
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Retourne la date de modification du fichier
+         * @return Millisecondes depuis le 1er janvier 1970
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Teste si l'empreinte et le nombre de lignes du contenu sont connus
+         * @return Vrai s'ils sont connus, faux sinon
+         */
+        public boolean hasContent() {
+            return lines >= 0;
+        }
+
+        /**
+         * Retourne l'empreinte du contenu
+         * @return Empreinte, sans signification si {@link #hasContent()} est
+         * faux
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * Retourne le nombre de lignes du contenu
+         * @return Nombre de lignes, -1 s'il n'est pas connu
+         */
+        public int getLines() {
+            return lines;
+        }
+    }
+
+    /**
+     * Répertoire des documents
+     */
+    protected final Path dir;
+
+    /**
+     * Description de chaque document, par nom
+     */
+    private final Map<String, Entry> entries = new TreeMap();
+
+    /**
+     * Date de modification du répertoire lors du parcours dont est issue la
+     * liste des documents (-1 si inconnue)
+     * <p>Remarque: lue avant le parcours, et conservée telle quelle par les
+     * écritures du catalogue: un fichier apparu ensuite sans être recensé
+     * rend cette date périmée, ce qui provoque un nouveau parcours.</p>
+     */
+    private long dirModified = -1;
+
+    /**
+     * Vrai si le catalogue a changé depuis sa dernière écriture
+     */
+    private boolean dirty;
+
+    /**
+     * Constructeur
+     * <p>Remarque: le catalogue est vide tant qu'il n'est ni lu, ni
+     * construit.</p>
+     * @param dirName Répertoire des documents
+     */
+    public DocumentCatalog(String dirName) {
+        dir = Paths.get(dirName).toAbsolutePath();
+    }
+
+    /**
+     * Retourne le chemin du fichier du catalogue
+     */
+    private Path path() {
+        return dir.resolve(LoggedStorableDocument.LOG_DIRECTORY).resolve(FILE_NAME);
+    }
+
+    /**
+     * Lit le catalogue, puis parcourt le répertoire seulement s'il a changé
+     * depuis l'écriture du catalogue
+     * <p>Remarque: lors d'un parcours, seules la taille et la date des
+     * fichiers sont consultées; l'empreinte d'un fichier modifié est
+     * oubliée.</p>
+     * @return Vrai si le catalogue lu était à jour, faux s'il a fallu
+     * parcourir le répertoire
+     */
+    public synchronized boolean open() {
+        try {
+            read();
+            if (dirModified == Files.getLastModifiedTime(dir).toMillis()) {
+                return true;
+            }
+        } catch (NoSuchFileException ex) {
+            /* Nothing */
+        } catch (IOException ex) {
+            Logger.getLogger(DocumentCatalog.class.getName()).log(Level.WARNING, "Catalogue illisible, reconstruit", ex);
+            entries.clear();
+        }
+        scan();
+        return false;
+    }
+
+    /**
+     * Lit le fichier du catalogue
+     */
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path())));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Format de catalogue inconnu");
+            }
+            long modified = in.readLong();
+            Map<String, Entry> read = new HashMap();
+            for (int n = in.readInt(); n > 0; n--) {
+                Entry e = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readInt());
+                read.put(e.getName(), e);
+            }
+            entries.clear();
+            entries.putAll(read);
+            dirModified = modified;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parcourt le répertoire et met le catalogue à jour
+     * <p>Remarque: les fichiers cachés (dont le nom commence par un point),
+     * comme les fichiers temporaires des sauvegardes, ne sont pas des
+     * documents.</p>
+     */
+    public synchronized void scan() {
+        try {
+            // Créé avant de lire la date: sa création modifie le répertoire
+            Files.createDirectories(path().getParent());
+        } catch (IOException ex) {
+            // L'écriture du catalogue signalera l'erreur
+        }
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException ex) {
+            modified = -1;
+        }
+        Map<String, Entry> previous = new HashMap(entries);
+        entries.clear();
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && !f.getName().startsWith(".")) {
+                    Entry old = previous.get(f.getName());
+                    long size = f.length();
+                    if (old != null && old.getSize() == size && old.getModified() == f.lastModified()) {
+                        entries.put(f.getName(), old);
+                    } else {
+                        entries.put(f.getName(), new Entry(f.getName(), size, f.lastModified(), 0, -1));
+                    }
+                }
+            }
+        }
+        dirModified = modified;
+        dirty = true;
+    }
+
+    /**
+     * Retourne les noms des documents
+     * @return Liste des noms, par ordre alphabétique
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList(entries.keySet());
+    }
+
+    /**
+     * Retourne la description d'un document
+     * @param name Nom du fichier
+     * @return Description, null si le document n'est pas catalogué
+     */
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Met à jour la description d'un document à partir de son contenu et de
+     * son fichier
+     * @param name Nom du fichier
+     * @param content Contenu du fichier
+     */
+    public void update(String name, DocumentInterface content) {
+        // Empreinte calculée hors du verrou: les mises à jour peuvent être parallèles
+        File f = dir.resolve(name).toFile();
+        Entry e = new Entry(name, f.length(), f.lastModified(), content.getRootHash(), content.size());
+        synchronized (this) {
+            entries.put(name, e);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Met à jour la description d'un document à partir de son fichier
+     * <p>Remarque: l'empreinte est oubliée si le fichier a changé; le document
+     * est retiré si le fichier n'existe plus.</p>
+     * @param name Nom du fichier
+     */
+    public synchronized void refresh(String name) {
+        File f = dir.resolve(name).toFile();
+        Entry old = entries.get(name);
+        if (!f.isFile()) {
+            remove(name);
+        } else if (old == null || old.getSize() != f.length() || old.getModified() != f.lastModified()) {
+            entries.put(name, new Entry(name, f.length(), f.lastModified(), 0, -1));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Retire un document du catalogue
+     * @param name Nom du fichier
+     */
+    public synchronized void remove(String name) {
+        if (entries.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Écrit le catalogue s'il a changé, en remplaçant le fichier d'un seul coup
+     * <p>Remarque: la date de modification du répertoire écrite est celle du
+     * dernier parcours (voir {@link #scan()}), pas la date actuelle.</p>
+     * @throws IOException Si une erreur survient lors de l'écriture sur le disque
+     */
+    public synchronized void store() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path target = path();
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), FILE_NAME, ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(dirModified);
+                out.writeInt(entries.size());
+                for (Entry e : entries.values()) {
+                    out.writeUTF(e.getName());
+                    out.writeLong(e.getSize());
+                    out.writeLong(e.getModified());
+                    out.writeLong(e.getHash());
+                    out.writeInt(e.getLines());
+                }
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        dirty = false;
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import document.DocumentSnapshot;
+import document.StorableDocument;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * File des sauvegardes de documents, écrites en tâche de fond
+ * <p>
+ * Seule la dernière version demandée de chaque document est conservée: des
+ * sauvegardes rapprochées d'un même document ne donnent lieu qu'à une
+ * écriture. Les documents sont écrits dans l'ordre de leur première demande,
+ * par un fil d'exécution dédié.</p>
+ * <p>
+ * Remarque: une erreur d'écriture est seulement journalisée, la demande de
+ * sauvegarde ayant déjà été acceptée.</p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class SaveQueue {
+
+    /**
+     * Dernière version à écrire de chaque document en attente
+     */
+    private final Map<StorableDocument, DocumentSnapshot> pending = new LinkedHashMap();
+
+    /**
+     * Document en cours d'écriture (null si aucun)
+     */
+    private StorableDocument writing;
+
+    /**
+     * Vrai une fois la file fermée
+     */
+    private boolean closed;
+
+    /**
+     * Fil d'exécution des écritures
+     */
+    private final Thread writer;
+
+    /**
+     * Catalogue mis à jour après chaque écriture (ou null)
+     */
+    protected final DocumentCatalog catalog;
+
+    /**
+     * Constructeur
+     * <p>Remarque: démarre le fil d'exécution des écritures.</p>
+     */
+    public SaveQueue() {
+        this(null);
+    }
+
+    /**
+     * Constructeur
+     * <p>Remarque: démarre le fil d'exécution des écritures.</p>
+     * @param _catalog Catalogue mis à jour après chaque écriture (ou null)
+     */
+    public SaveQueue(DocumentCatalog _catalog) {
+        catalog = _catalog;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "enshare-saves");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Demande la sauvegarde de la version actuelle d'un document
+     * <p>Remarque: à appeler dans le fil d'exécution qui modifie le document;
+     * remplace une version du même document encore en attente.</p>
+     * @param sd Document stocké
+     */
+    public synchronized void submit(StorableDocument sd) {
+        if (closed) {
+            throw new IllegalStateException("File des sauvegardes fermée");
+        }
+        pending.put(sd, sd.prepareSave());
+        notifyAll();
+    }
+
+    /**
+     * Écrit les versions en attente, jusqu'à la fermeture de la file
+     */
+    private void writeLoop() {
+        while (true) {
+            StorableDocument sd;
+            DocumentSnapshot version;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        /* Nothing */
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<StorableDocument, DocumentSnapshot>> it = pending.entrySet().iterator();
+                Map.Entry<StorableDocument, DocumentSnapshot> entry = it.next();
+                it.remove();
+                sd = entry.getKey();
+                version = entry.getValue();
+                writing = sd;
+            }
+            try {
+                sd.save(version);
+                if (catalog != null) {
+                    catalog.update(Paths.get(sd.getPath()).getFileName().toString(), version);
+                }
+                Logger.getLogger(SaveQueue.class.getName()).log(Level.INFO, "Document " + sd.getPath() + " sauvegardé");
+            } catch (IOException ex) {
+                Logger.getLogger(SaveQueue.class.getName()).log(Level.SEVERE, "Échec de la sauvegarde de " + sd.getPath(), ex);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(SaveQueue.class.getName()).log(Level.SEVERE, "Échec de la sauvegarde de " + sd.getPath(), ex);
+            } finally {
+                synchronized (this) {
+                    writing = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Teste si la sauvegarde d'un document est en attente ou en cours
+     * @param sd Document stocké
+     * @return Vrai si une version du document reste à écrire, faux sinon
+     */
+    public synchronized boolean isPending(StorableDocument sd) {
+        return pending.containsKey(sd) || writing == sd;
+    }
+
+    /**
+     * Attend que toutes les sauvegardes demandées soient écrites
+     */
+    public synchronized void flush() {
+        boolean interrupted = false;
+        while (!pending.isEmpty() || writing != null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Attend que les sauvegardes demandées d'un document soient écrites
+     * @param sd Document stocké
+     */
+    public synchronized void flush(StorableDocument sd) {
+        boolean interrupted = false;
+        while (pending.containsKey(sd) || writing == sd) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Écrit les sauvegardes en attente puis arrête la file
+     * <p>Remarque: aucune sauvegarde ne peut plus être demandée ensuite.</p>
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        flush();
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
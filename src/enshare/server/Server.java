@@ -5,8 +5,12 @@
  */
 package enshare.server;
 
-import document.Document;
+import document.DocumentFactory;
+import document.DocumentHistory;
 import document.DocumentInterface;
+import document.DocumentPatch;
+import document.DocumentSnapshot;
+import document.EditScript;
 import document.StorableDocument;
 import enshare.AbstractIdentifiable;
 import enshare.client.RemoteControllerInterface;
@@ -15,19 +19,29 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.file.FileAlreadyExistsException;
-import java.rmi.ConnectException;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import sun.misc.Signal;
@@ -39,6 +53,30 @@ import sun.misc.Signal;
  */
 public class Server extends AbstractIdentifiable implements ServerInterface {
 
+    /**
+     * Nom de la propriété système qui choisit le chargement des documents:
+     * <code>lazy</code> (par défaut), à la première ouverture, ou
+     * <code>eager</code>, dès le démarrage
+     */
+    static public final String LOADING_PROPERTY = "enshare.loading";
+
+    /**
+     * Nom de la propriété système qui fixe le nombre de fils d'exécution du
+     * chargement au démarrage (nombre de processeurs par défaut)
+     */
+    static public final String LOADING_THREADS_PROPERTY = "enshare.loading.threads";
+
+    /**
+     * Nom de la propriété système qui active la surveillance du répertoire
+     * (vrai par défaut)
+     */
+    static public final String WATCH_PROPERTY = "enshare.watch";
+
+    /**
+     * Nombre de verrous répartissant les documents
+     */
+    static protected final int LOCK_STRIPES = 64;
+
     /**
      * Séparateur de fichier dans un chemin d'accès
      */
@@ -50,12 +88,12 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     protected String dirName;
 
     /**
-     * Table associant chaque <b>nom de fichier</b> à son <b>document
-     * stockable</b>
+     * Documents stockables, chargés à la demande et désignés par leur <b>nom
+     * de fichier</b>
      * <p>
      * Remarque: Le nom est différent du chemin d'accès au fichier.</p>
      */
-    protected Map<String, StorableDocument> storedDocuments;
+    protected DocumentCache storedDocuments;
 
     /**
      * Table associant chaque <b>URL d'un client</b> à son <b>contrôleur
@@ -75,6 +113,45 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
      */
     protected Map<String, BlockingQueue<RemoteControllerInterface>> writers;
 
+    /**
+     * File des sauvegardes, écrites en tâche de fond
+     */
+    protected SaveQueue saves;
+
+    /**
+     * Catalogue des documents, conservé sur le disque
+     */
+    protected DocumentCatalog catalog;
+
+    /**
+     * Surveillance du répertoire (null si désactivée)
+     */
+    protected DirectoryWatcher watcher;
+
+    /**
+     * Files des notifications de chaque client connecté, désigné par son
+     * contrôleur distant
+     */
+    protected Map<RemoteControllerInterface, ClientChannel> channels;
+
+    /**
+     * Objet prévenu par les files des notifications des clients disparus
+     */
+    private final ClientChannel.Listener lostClients = new ClientChannel.Listener() {
+        @Override
+        public void clientLost(String clientUrl) {
+            // Supprimer le client s'il n'existe plus
+            disconnectNotepad(clientUrl);
+        }
+    };
+
+    /**
+     * Verrous des documents, chacun partagé par les documents de même
+     * empreinte de nom: les opérations sur un même document s'excluent, celles
+     * sur des documents différents s'exécutent en parallèle
+     */
+    private final Lock[] documentLocks = new Lock[LOCK_STRIPES];
+
     /**
      * Constructeur
      *
@@ -88,12 +165,33 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
         if (System.getSecurityManager() == null) {
             System.setSecurityManager(new SecurityManager());
         }
-        connectedNotepads = new HashMap();
+        for (int i = 0; i < documentLocks.length; i++) {
+            documentLocks[i] = new ReentrantLock();
+        }
+        connectedNotepads = new ConcurrentHashMap();
+        channels = new ConcurrentHashMap();
         dirName = _dirName;
-        storedDocuments = new HashMap();
-        writers = new HashMap();
-        readers = new HashMap();
+        catalog = new DocumentCatalog(dirName);
+        storedDocuments = new DocumentCache(dirName, new DocumentCache.Usage() {
+            @Override
+            public boolean isInUse(String name, StorableDocument sd) {
+                Lock lock = lockOf(name);
+                if (!lock.tryLock()) {
+                    // Document (ou voisin de même verrou) en cours d'utilisation
+                    return true;
+                }
+                try {
+                    return !readers.get(name).isEmpty() || !writers.get(name).isEmpty() || saves.isPending(sd);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, catalog);
+        writers = new ConcurrentHashMap();
+        readers = new ConcurrentHashMap();
+        saves = new SaveQueue(catalog);
         loadDirectory();
+        watchDirectory();
         ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(this, 0);
         Naming.rebind(_url, stub);
         url = _url;
@@ -115,6 +213,22 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        // Toutes les sauvegardes acceptées doivent être sur le disque avant l'arrêt
+        saves.close();
+        try {
+            // Fichiers apparus sans surveillance, ou après son arrêt
+            catalog.scan();
+            catalog.store();
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+        }
         try {
             Naming.unbind(url);
         } catch (RemoteException ex) {
@@ -127,21 +241,259 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     }
 
     /**
-     * Charge tous les documents à partager
+     * Recense tous les documents à partager
+     * <p>Remarque: la liste vient du catalogue si le répertoire n'a pas changé
+     * depuis son écriture. Les documents ne sont chargés qu'à leur première
+     * ouverture, sauf si la propriété système <code>enshare.loading</code>
+     * vaut <code>eager</code>.</p>
      */
     protected void loadDirectory() {
-        File folder = new File(dirName);
-        for (File fileEntry : folder.listFiles()) {
-            if (fileEntry.isFile()) {
+        boolean eager = System.getProperty(LOADING_PROPERTY, "lazy").equals("eager");
+        boolean upToDate = catalog.open();
+        List<String> names = catalog.getNames();
+        for (String name : names) {
+            register(name);
+            storedDocuments.addName(name);
+        }
+        if (eager) {
+            loadDocuments(names);
+        }
+        try {
+            catalog.store();
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+        }
+        Logger.getLogger(Server.class.getName()).log(Level.INFO, readers.size() + " documents recensés" + (upToDate ? " (catalogue à jour)" : ""));
+    }
+
+    /**
+     * Retourne le verrou d'un document
+     *
+     * @param name Nom du fichier
+     * @return Verrou réentrant, à détenir pour lire ou modifier l'état du
+     * document (lecteurs, écrivain, contenu)
+     */
+    protected Lock lockOf(String name) {
+        return documentLocks[(name.hashCode() & Integer.MAX_VALUE) % documentLocks.length];
+    }
+
+    /**
+     * Crée les listes de lecteurs et d'écrivains d'un document
+     *
+     * @param name Nom du fichier
+     */
+    protected void register(String name) {
+        Set<RemoteControllerInterface> s = Collections.newSetFromMap(new ConcurrentHashMap());
+        readers.putIfAbsent(name, s);
+        writers.putIfAbsent(name, new ArrayBlockingQueue(1));
+    }
+
+    /**
+     * Surveille le répertoire pour prendre en compte les fichiers ajoutés,
+     * modifiés ou supprimés par d'autres programmes
+     * <p>Remarque: désactivée si la propriété système
+     * <code>enshare.watch</code> vaut <code>false</code>.</p>
+     */
+    protected void watchDirectory() {
+        if (!System.getProperty(WATCH_PROPERTY, "true").equals("true")) {
+            return;
+        }
+        try {
+            watcher = new DirectoryWatcher(dirName, new DirectoryWatcher.Listener() {
+                @Override
+                public void fileCreated(String name) {
+                    addFile(name);
+                }
+
+                @Override
+                public void fileModified(String name) {
+                    reloadFile(name);
+                }
+
+                @Override
+                public void fileDeleted(String name) {
+                    retireFile(name);
+                }
+
+                @Override
+                public void changesLost() {
+                    rescanDirectory();
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Surveillance du répertoire impossible", ex);
+        }
+    }
+
+    /**
+     * Prend en compte un fichier apparu dans le répertoire
+     * @param name Nom du fichier
+     */
+    protected void addFile(String name) {
+        Lock lock = lockOf(name);
+        lock.lock();
+        try {
+            if (storedDocuments.contains(name)) {
+                // Fichier remplacé par renommage
+                reloadFile(name);
+                return;
+            }
+            if (!new File(dirName + separator + name).isFile()) {
+                return;
+            }
+            catalog.refresh(name);
+            register(name);
+            storedDocuments.addName(name);
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Nouveau document " + name + " dans le répertoire");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prend en compte la modification d'un fichier du répertoire
+     * <p>Remarque: un document chargé est rechargé sur place, et ses lecteurs
+     * sont prévenus; les écritures du serveur lui-même sont ignorées.</p>
+     * @param name Nom du fichier
+     */
+    protected void reloadFile(String name) {
+        Lock lock = lockOf(name);
+        lock.lock();
+        try {
+            if (!storedDocuments.contains(name)) {
+                addFile(name);
+                return;
+            }
+            StorableDocument sd = storedDocuments.getIfLoaded(name);
+            if (sd == null) {
+                catalog.refresh(name);
+                return;
+            }
+            if (saves.isPending(sd) || !sd.isFileChanged()) {
+                return;
+            }
+            try {
+                sd.load();
+                catalog.update(name, sd.getDocument());
+                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Document " + name + " rechargé");
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Rechargement impossible du document " + name, ex);
+                return;
+            }
+            if (!readers.get(name).isEmpty()) {
+                notifyModificationToClients(name, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prend en compte la disparition d'un fichier du répertoire
+     * <p>Remarque: un document ouvert reste partagé (sa prochaine sauvegarde
+     * recrée le fichier).</p>
+     * @param name Nom du fichier
+     */
+    protected void retireFile(String name) {
+        Lock lock = lockOf(name);
+        lock.lock();
+        try {
+            if (!storedDocuments.contains(name) || new File(dirName + separator + name).isFile()) {
+                return;
+            }
+            if (!readers.get(name).isEmpty() || !writers.get(name).isEmpty()) {
+                Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Document ouvert " + name + " supprimé du répertoire, conservé");
+                return;
+            }
+            storedDocuments.remove(name);
+            catalog.remove(name);
+            readers.remove(name);
+            writers.remove(name);
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Document " + name + " retiré");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parcourt de nouveau tout le répertoire, quand des changements ont été
+     * perdus
+     */
+    protected void rescanDirectory() {
+        for (String name : storedDocuments.getNames()) {
+            if (new File(dirName + separator + name).isFile()) {
+                reloadFile(name);
+            } else {
+                retireFile(name);
+            }
+        }
+        File[] files = new File(dirName).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && !f.getName().startsWith(".") && !storedDocuments.contains(f.getName())) {
+                    addFile(f.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Charge des documents en parallèle
+     * <p>Remarque: seuls les premiers documents qui tiennent dans le budget du
+     * cache (estimé par la taille des fichiers) sont chargés, les suivants
+     * seraient aussitôt déchargés; ils le seront à leur première ouverture.
+     * Chaque document entre dans le cache dès son chargement terminé. Un
+     * document dont le chargement échoue reste recensé; l'échec est
+     * journalisé.</p>
+     * @param names Noms des documents
+     */
+    protected void loadDocuments(List<String> names) {
+        int threads = Integer.getInteger(LOADING_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            CompletionService<StorableDocument> results = new ExecutorCompletionService(pool);
+            long estimate = 0;
+            int submitted = 0;
+            for (final String name : names) {
+                long size = new File(dirName + separator + name).length();
+                if (submitted > 0 && estimate + size > storedDocuments.getBudget()) {
+                    break;
+                }
+                estimate += size;
+                results.submit(new Callable<StorableDocument>() {
+                    @Override
+                    public StorableDocument call() {
+                        try {
+                            StorableDocument sd = DocumentFactory.newStorableDocument(dirName + separator + name);
+                            catalog.update(name, sd.getDocument());
+                            return sd;
+                        } catch (IOException ex) {
+                            Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Chargement impossible du document " + name, ex);
+                            return null;
+                        }
+                    }
+                });
+                submitted++;
+            }
+            int loaded = 0;
+            for (int i = 0; i < submitted; i++) {
                 try {
-                    storedDocuments.put(fileEntry.getName(), new StorableDocument(fileEntry.getPath()));
-                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Document " + fileEntry.getName() + " chargé");
-                    writers.put(fileEntry.getName(), new ArrayBlockingQueue(1));
-                    readers.put(fileEntry.getName(), new HashSet());
-                } catch (IOException ex) {
-                    /* Nothing */
+                    StorableDocument sd = results.take().get();
+                    if (sd != null) {
+                        storedDocuments.put(new File(sd.getPath()).getName(), sd);
+                        loaded++;
+                    }
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(Server.class.getName()).log(Level.WARNING, "Chargement impossible d'un document", ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, loaded + " documents chargés (" + threads + " fils)"
+                    + (submitted < names.size() ? ", " + (names.size() - submitted) + " au-delà du budget du cache" : ""));
+        } finally {
+            pool.shutdownNow();
         }
     }
 
@@ -164,10 +516,14 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     }
 
     @Override
-    public synchronized boolean connectNotepad(String clientUrl) throws RemoteException {
+    public boolean connectNotepad(String clientUrl) throws RemoteException {
         try {
             RemoteControllerInterface client = (RemoteControllerInterface) Naming.lookup(clientUrl);
-            connectedNotepads.put(clientUrl, client);
+            RemoteControllerInterface previous = connectedNotepads.put(clientUrl, client);
+            if (previous != null) {
+                closeChannel(previous);
+            }
+            channels.put(client, new ClientChannel(clientUrl, client, lostClients));
             Logger.getLogger(Server.class.getName()).log(Level.INFO, "Connexion du notepad " + clientUrl);
             return true;
         } catch (NotBoundException ex) {
@@ -180,19 +536,61 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     }
 
     @Override
-    public synchronized void disconnectNotepad(String clientUrl) {
+    public void disconnectNotepad(String clientUrl) {
         closeAllDocuments(clientUrl);
-        connectedNotepads.remove(clientUrl);
-        Logger.getLogger(Server.class.getName()).log(Level.INFO, "Déconnexion du notepad " + clientUrl);
+        RemoteControllerInterface controller = connectedNotepads.remove(clientUrl);
+        if (controller != null) {
+            closeChannel(controller);
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Déconnexion du notepad " + clientUrl);
+        }
     }
 
-    @Override
-    public synchronized List<String> getDocumentList() {
-        List<String> fileNames = new ArrayList();
-        for (Map.Entry<String, StorableDocument> entry : storedDocuments.entrySet()) {
-            fileNames.add(entry.getKey());
+    /**
+     * Retourne le contrôleur distant d'un client connecté
+     * <p>Remarque: les listes de lecteurs, concurrentes, n'acceptent pas de
+     * client inconnu.</p>
+     *
+     * @param clientUrl URL du client
+     * @return Contrôleur distant du client
+     * @throws RemoteException Si le client ne s'est pas connecté (voir
+     * {@link #connectNotepad(String)})
+     */
+    private RemoteControllerInterface connectedController(String clientUrl) throws RemoteException {
+        RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
+        if (controller == null) {
+            throw new RemoteException("Notepad " + clientUrl + " non connecté au serveur");
         }
-        return fileNames;
+        return controller;
+    }
+
+    /**
+     * Arrête la file des notifications d'un client
+     *
+     * @param controller Contrôleur distant du client
+     */
+    private void closeChannel(RemoteControllerInterface controller) {
+        ClientChannel channel = channels.remove(controller);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Oublie la version d'un document connue d'un client qui l'a fermé
+     *
+     * @param controller Contrôleur distant du client
+     * @param targetFileName Nom du document fermé
+     */
+    private void forgetDocument(RemoteControllerInterface controller, String targetFileName) {
+        ClientChannel channel = channels.get(controller);
+        if (channel != null) {
+            channel.forget(targetFileName);
+        }
+    }
+
+    @Override
+    public List<String> getDocumentList() {
+        return storedDocuments.getNames();
     }
 
     /**
@@ -201,67 +599,103 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
      * @param targetFileName Nom du fichier recherché
      * @return Vrai si le fichier est connu, faux sinon
      */
-    public synchronized boolean existingFileName(String targetFileName) {
-        for (Map.Entry<String, StorableDocument> entry : storedDocuments.entrySet()) {
-            if (entry.getKey().equals(targetFileName)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean existingFileName(String targetFileName) {
+        return storedDocuments.contains(targetFileName);
     }
 
     @Override
-    public synchronized DocumentInterface getDocument(String clientUrl, String targetFileName) throws RemoteException, FileNotFoundException {
-        StorableDocument sd = storedDocuments.get(targetFileName);
-        if (sd != null) {
-            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Ouverture du document " + targetFileName + " par notepad " + clientUrl);
-            closeAllDocuments(clientUrl);
-            RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-            readers.get(targetFileName).add(controller);
-            return sd.getDocument();
-        } else {
-            throw new FileNotFoundException();
+    public DocumentInterface getDocument(String clientUrl, String targetFileName) throws RemoteException, FileNotFoundException {
+        RemoteControllerInterface controller = connectedController(clientUrl);
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            StorableDocument sd;
+            try {
+                sd = storedDocuments.get(targetFileName);
+            } catch (FileNotFoundException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                throw new RemoteException("Chargement impossible du document " + targetFileName, ex);
+            }
+            if (sd != null) {
+                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Ouverture du document " + targetFileName + " par notepad " + clientUrl);
+                closeAllDocuments(clientUrl);
+                readers.get(targetFileName).add(controller);
+                // Même version figée (et mêmes octets) que celle diffusée aux
+                // lecteurs, tant que le document n'a pas changé
+                DocumentSnapshot snapshot = sd.getDocument().snapshot();
+                ClientChannel channel = channels.get(controller);
+                if (channel != null) {
+                    // Les versions suivantes seront envoyées en correctifs
+                    channel.setKnownVersion(targetFileName, snapshot);
+                }
+                return snapshot;
+            } else {
+                throw new FileNotFoundException();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized void closeDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException, FileNotFoundException {
-        StorableDocument sd = storedDocuments.get(targetFileName);
-        if (sd != null) {
-            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Fermeture du document " + targetFileName + " par notepad " + clientUrl);
-            RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-            // Retirer de la liste des lecteurs
-            readers.get(targetFileName).remove(controller);
-            // Essaie de supprimer de la liste des écrivains
-            unlockDocument(clientUrl, targetFileName, d);
-            if (readers.get(targetFileName).isEmpty()) {
-                try {
-                    // Recharger la dernière version sauvegardée (-> perte des changements non sauvegardés)
-                    sd.load();
-                } catch (IOException ex) {
-                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+    public void closeDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
+            if (sd != null) {
+                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Fermeture du document " + targetFileName + " par notepad " + clientUrl);
+                RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
+                if (controller != null) {
+                    // Retirer de la liste des lecteurs
+                    readers.get(targetFileName).remove(controller);
+                    forgetDocument(controller, targetFileName);
+                }
+                // Essaie de supprimer de la liste des écrivains
+                unlockDocument(clientUrl, targetFileName, d);
+                if (readers.get(targetFileName).isEmpty()) {
+                    try {
+                        // Recharger la dernière version sauvegardée (-> perte des changements non sauvegardés)
+                        saves.flush(sd);
+                        sd.load();
+                    } catch (IOException ex) {
+                        Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    storedDocuments.trim();
                 }
+            } else if (!storedDocuments.contains(targetFileName)) {
+                throw new FileNotFoundException();
             }
-        } else {
-            throw new FileNotFoundException();
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * Ferme tous les documents d'un client
+     * <p>Remarque: aucun verrou de document n'est pris (les listes de lecteurs
+     * et d'écrivains sont concurrentes), la méthode peut donc être appelée en
+     * détenant le verrou d'un autre document. Le client est retiré des
+     * lecteurs avant de l'être des écrivains: un verrouillage concurrent
+     * (voir {@link #tryLockDocument(String, String)}) revérifie ensuite que
+     * le client est encore lecteur, et n'est donc jamais conservé.</p>
      *
      * @param clientUrl URL du client
      */
-    protected synchronized void closeAllDocuments(String clientUrl) {
+    protected void closeAllDocuments(String clientUrl) {
         RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-        for (String fileName : storedDocuments.keySet()) {
+        if (controller == null) {
+            return;
+        }
+        for (Map.Entry<String, Set<RemoteControllerInterface>> entry : readers.entrySet()) {
+            String fileName = entry.getKey();
             // Retirer le notepad de toutes les listes de lecteurs
-            Set<RemoteControllerInterface> s = readers.get(fileName);
-            if (s.contains(controller)) {
-                readers.get(fileName).remove(controller);
+            if (entry.getValue().remove(controller)) {
+                forgetDocument(controller, fileName);
                 // Retirer aussi de la liste des écrivant si besoin
-                if (writers.get(fileName).contains(controller)) {
-                    writers.get(fileName).poll();
+                BlockingQueue<RemoteControllerInterface> w = writers.get(fileName);
+                if (w != null && w.remove(controller)) {
                     Logger.getLogger(Server.class.getName()).log(Level.INFO, "Déverrouillage du document " + fileName + " pour notepad " + clientUrl);
                 }
                 Logger.getLogger(Server.class.getName()).log(Level.INFO, "Fermeture du document " + fileName + " pour notepad " + clientUrl);
@@ -270,77 +704,217 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     }
 
     @Override
-    public synchronized DocumentInterface newDocument(String clientUrl, String targetFileName) throws RemoteException, FileAlreadyExistsException, IOException {
+    public DocumentInterface newDocument(String clientUrl, String targetFileName) throws RemoteException, FileAlreadyExistsException, IOException {
         return newDocument(clientUrl, targetFileName, false);
     }
 
     @Override
-    public synchronized DocumentInterface newDocument(String clientUrl, String targetFileName, boolean isLocked) throws RemoteException, FileAlreadyExistsException, IOException {
-        if (existingFileName(targetFileName)) {
-            throw new FileAlreadyExistsException("Le nom " + targetFileName + " est déjà utilisé par un autre fichier.");
-        }
-        StorableDocument sd = new StorableDocument(dirName + separator + targetFileName, new Document());
-        sd.save();
-        storedDocuments.put(targetFileName, sd);
-        writers.put(targetFileName, new ArrayBlockingQueue(1));
-        readers.put(targetFileName, new HashSet());
-        Logger.getLogger(Server.class.getName()).log(Level.INFO, "Nouveau document " + targetFileName);
-        // Ouverture en mode lecture
-        DocumentInterface returned_document = getDocument(clientUrl, targetFileName);
-        if (isLocked) {
-            // Ouverture en mode écriture
-            tryLockDocument(clientUrl, targetFileName);
+    public DocumentInterface newDocument(String clientUrl, String targetFileName, boolean isLocked) throws RemoteException, FileAlreadyExistsException, IOException {
+        connectedController(clientUrl);
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            if (existingFileName(targetFileName)) {
+                throw new FileAlreadyExistsException("Le nom " + targetFileName + " est déjà utilisé par un autre fichier.");
+            }
+            StorableDocument sd = DocumentFactory.newStorableDocument(dirName + separator + targetFileName, DocumentFactory.newDocument());
+            register(targetFileName);
+            storedDocuments.put(targetFileName, sd);
+            catalog.update(targetFileName, sd.getDocument());
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "Nouveau document " + targetFileName);
+            // Ouverture en mode lecture
+            DocumentInterface returned_document = getDocument(clientUrl, targetFileName);
+            if (isLocked) {
+                // Ouverture en mode écriture
+                tryLockDocument(clientUrl, targetFileName);
+            }
+            return returned_document;
+        } finally {
+            lock.unlock();
         }
-        return returned_document;
     }
 
     @Override
-    public synchronized boolean saveDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException {
-        StorableDocument sd = storedDocuments.get(targetFileName);
-        if (sd != null) {
-            RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-            if (writers.get(targetFileName).contains(controller)) {
-                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Modification du document " + targetFileName);
-                sd.setDocument(d);
-                notifyModificationToClients(targetFileName, controller);
-                try {
-                    sd.save();
-                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Document " + targetFileName + " sauvergardé");
-                } catch (IOException ex) {
-                    Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+    public boolean saveDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
+            if (sd != null) {
+                RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
+                if (writers.get(targetFileName).contains(controller)) {
+                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Modification du document " + targetFileName);
+                    DocumentInterface base = sd.getDocument();
+                    long baseHash = base.getRootHash();
+                    int baseSize = base.size();
+                    EditScript script = sd.update(d);
+                    notifyModificationToClients(targetFileName, controller, baseHash, baseSize, script);
+                    // Écriture en tâche de fond: la réponse n'attend pas le disque
+                    saves.submit(sd);
+                    return true;
                 }
-                return true;
             }
+            return false;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     @Override
-    public synchronized boolean tryLockDocument(String clientUrl, String targetFileName) throws RemoteException, FileNotFoundException {
-        if (storedDocuments.containsKey(targetFileName)) {
-            RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-            if (readers.get(targetFileName).contains(controller) && writers.get(targetFileName).offer(controller)) {
-                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " verrouille document " + targetFileName);
-                return true;
+    public boolean tryLockDocument(String clientUrl, String targetFileName) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            if (storedDocuments.contains(targetFileName)) {
+                RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
+                Set<RemoteControllerInterface> r = readers.get(targetFileName);
+                BlockingQueue<RemoteControllerInterface> w = writers.get(targetFileName);
+                if (controller != null && r.contains(controller) && w.offer(controller)) {
+                    // Client fermé entre-temps par closeAllDocuments, qui ne
+                    // prend pas ce verrou: rendre le document
+                    if (!r.contains(controller)) {
+                        w.remove(controller);
+                        Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " fermé pendant le verrouillage du document " + targetFileName);
+                        return false;
+                    }
+                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " verrouille document " + targetFileName);
+                    return true;
+                } else {
+                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " échoue à verrouiller document " + targetFileName);
+                    return false;
+                }
             } else {
-                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " échoue à verrouiller document " + targetFileName);
                 return false;
             }
-        } else {
-            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void unlockDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
+            if (sd != null) {
+                RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
+                // Nothing happens if controller was not in the blocking queue
+                if (writers.get(targetFileName).remove(controller)) {
+                    DocumentInterface base = sd.getDocument();
+                    long baseHash = base.getRootHash();
+                    int baseSize = base.size();
+                    EditScript script = sd.update(d);
+                    notifyModificationToClients(targetFileName, controller, baseHash, baseSize, script);
+                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " déverrouille document " + targetFileName);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Long> getRevisions(String targetFileName) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            DocumentHistory history = openHistory(targetFileName);
+            if (history == null) {
+                return new ArrayList();
+            }
+            try {
+                return history.getTimestamps();
+            } catch (IOException ex) {
+                throw new RemoteException("Historique illisible du document " + targetFileName, ex);
+            } finally {
+                releaseHistory(targetFileName, history);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public DocumentInterface getRevision(String targetFileName, int revision) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            DocumentHistory history = openHistory(targetFileName);
+            if (history == null) {
+                throw new RemoteException("Historique désactivé");
+            }
+            try {
+                return history.getRevision(revision);
+            } catch (IOException ex) {
+                throw new RemoteException("Historique illisible du document " + targetFileName, ex);
+            } finally {
+                releaseHistory(targetFileName, history);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized void unlockDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException, FileNotFoundException {
-        StorableDocument sd = storedDocuments.get(targetFileName);
+    public EditScript diffRevisions(String targetFileName, int from, int to) throws RemoteException, FileNotFoundException {
+        Lock lock = lockOf(targetFileName);
+        lock.lock();
+        try {
+            DocumentHistory history = openHistory(targetFileName);
+            if (history == null) {
+                throw new RemoteException("Historique désactivé");
+            }
+            try {
+                return history.diff(from, to);
+            } catch (IOException ex) {
+                throw new RemoteException("Historique illisible du document " + targetFileName, ex);
+            } finally {
+                releaseHistory(targetFileName, history);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retourne l'historique d'un document, sans charger celui-ci
+     * <p>Remarque: l'historique d'un document chargé est celui dans lequel
+     * ses sauvegardes sont écrites; sinon, un historique est ouvert le temps
+     * de la lecture (voir {@link #releaseHistory(String, DocumentHistory)}).
+     * La lecture ne crée pas le fichier d'historique d'un document jamais
+     * sauvegardé.
+     * Les sauvegardes encore en attente n'y figurent pas.</p>
+     *
+     * @param targetFileName Nom du document
+     * @return Historique, null s'il est désactivé
+     * @throws FileNotFoundException Si le nom de fichier demandé n'existe pas
+     */
+    private DocumentHistory openHistory(String targetFileName) throws FileNotFoundException {
+        if (!storedDocuments.contains(targetFileName)) {
+            throw new FileNotFoundException(targetFileName);
+        }
+        if (!DocumentHistory.ENABLED) {
+            return null;
+        }
+        StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
         if (sd != null) {
-            RemoteControllerInterface controller = connectedNotepads.get(clientUrl);
-            // Nothing happens if controller was not in the blocking queue
-            if (writers.get(targetFileName).remove(controller)) {
-                sd.setDocument(d);
-                notifyModificationToClients(targetFileName, controller);
-                Logger.getLogger(Server.class.getName()).log(Level.INFO, "Notepad " + clientUrl + " déverrouille document " + targetFileName);
+            return sd.getHistory();
+        }
+        return new DocumentHistory(DocumentHistory.pathOf(dirName + separator + targetFileName));
+    }
+
+    /**
+     * Ferme un historique ouvert par {@link #openHistory(String)} pour un
+     * document non chargé
+     */
+    private void releaseHistory(String targetFileName, DocumentHistory history) {
+        StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
+        if (sd == null || sd.getHistory() != history) {
+            try {
+                history.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
             }
         }
     }
@@ -348,27 +922,49 @@ public class Server extends AbstractIdentifiable implements ServerInterface {
     /**
      * Propage la nouvelle version d'un document à tous ses lecteurs, sauf le
      * client responsable de la modification
+     * <p>Remarque: les versions sont seulement mises dans la file de chaque
+     * client (voir {@link ClientChannel}), la méthode n'attend aucun
+     * client.</p>
+     *
+     * @param targetFileName Nom du fichier modifié
+     * @param exceptedController Client à l'origine de la modification
+     */
+    protected void notifyModificationToClients(String targetFileName, RemoteControllerInterface exceptedController) {
+        notifyModificationToClients(targetFileName, exceptedController, 0, 0, null);
+    }
+
+    /**
+     * Propage la nouvelle version d'un document à tous ses lecteurs, sauf le
+     * client responsable de la modification, avec le correctif depuis la
+     * version précédente
+     * <p>Remarque: chaque lecteur reçoit le correctif s'il dispose de la
+     * version précédente, le document entier sinon (voir
+     * {@link ClientChannel}).</p>
      *
      * @param targetFileName Nom du fichier modifié
      * @param exceptedController Client à l'origine de la modification
+     * @param baseHash Empreinte de la version précédente
+     * @param baseSize Nombre de lignes de la version précédente
+     * @param script Modifications depuis la version précédente (null si
+     * inconnues)
      */
-    protected synchronized void notifyModificationToClients(String targetFileName, RemoteControllerInterface exceptedController) {
-        if (storedDocuments.containsKey(targetFileName)) {
+    protected void notifyModificationToClients(String targetFileName, RemoteControllerInterface exceptedController, long baseHash, int baseSize, EditScript script) {
+        StorableDocument sd = storedDocuments.getIfLoaded(targetFileName);
+        if (sd != null) {
+            // Une seule version figée, partagée par tous les lecteurs (et codée
+            // une seule fois pour eux, voir DocumentSnapshot)
+            DocumentSnapshot version = sd.getDocument().snapshot();
+            DocumentPatch patch = script == null ? null : new DocumentPatch(baseHash, baseSize, script, version.getRootHash(), version.size());
             for (RemoteControllerInterface controller : readers.get(targetFileName)) {
+                ClientChannel channel = channels.get(controller);
+                if (channel == null) {
+                    continue;
+                }
                 if (controller != exceptedController) {
-                    String clientUrl = getClientUrl(controller);
-                    if (clientUrl != null) {
-                        try {
-                            System.err.println("Notification du controleur " + clientUrl + " pour le document " + targetFileName);
-                            controller.updateDocument(url, storedDocuments.get(targetFileName).getDocument());
-                        } catch (ConnectException ex) {
-                            // Supprimer le client s'il n'existe plus
-                            disconnectNotepad(clientUrl);
-                        } catch (RemoteException ex) {
-                            System.err.println("ERREUR: Impossible de notifier le controleur " + clientUrl);
-                            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
+                    channel.offer(url, targetFileName, version, patch);
+                } else {
+                    // L'auteur dispose déjà de cette version
+                    channel.setKnownVersion(targetFileName, version);
                 }
             }
         }
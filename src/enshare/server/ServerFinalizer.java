@@ -40,6 +40,8 @@ public class ServerFinalizer implements SignalHandler {
 
     /**
      * Définit le comportement à avoir lors de l'interception d'un signal
+     * <p>Remarque: les sauvegardes en attente sont écrites avant l'arrêt (voir
+     * {@link Server#finalize()}).</p>
      * @param sig Signal intercepté
      */
     @Override
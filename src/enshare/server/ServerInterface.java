@@ -16,6 +16,7 @@
 package enshare.server;
 
 import document.DocumentInterface;
+import document.EditScript;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
@@ -148,4 +149,39 @@ public interface ServerInterface extends Remote {
      */
     public void unlockDocument(String clientUrl, String targetFileName, DocumentInterface d) throws RemoteException, FileNotFoundException;
 
+    /**
+     * Retourne les dates des révisions sauvegardées d'un document
+     *
+     * @param targetFileName Nom du document
+     * @return Dates (en ms depuis le 1er janvier 1970) des révisions, de la
+     * plus ancienne (numéro 0) à la plus récente; vide si l'historique est
+     * désactivé
+     * @throws RemoteException Si un problème en rapport avec RMI survient
+     * @throws FileNotFoundException Si le nom de fichier demandé n'existe pas
+     */
+    public List<Long> getRevisions(String targetFileName) throws RemoteException, FileNotFoundException;
+
+    /**
+     * Retourne un document tel qu'il était à une révision passée
+     *
+     * @param targetFileName Nom du document
+     * @param revision Numéro de la révision (voir {@link #getRevisions(String)})
+     * @return Copie du document à cette révision
+     * @throws RemoteException Si un problème en rapport avec RMI survient
+     * @throws FileNotFoundException Si le nom de fichier demandé n'existe pas
+     */
+    public DocumentInterface getRevision(String targetFileName, int revision) throws RemoteException, FileNotFoundException;
+
+    /**
+     * Compare deux révisions d'un document
+     *
+     * @param targetFileName Nom du document
+     * @param from Numéro de la révision d'origine
+     * @param to Numéro de la révision finale
+     * @return Script d'édition transformant la première révision en la seconde
+     * @throws RemoteException Si un problème en rapport avec RMI survient
+     * @throws FileNotFoundException Si le nom de fichier demandé n'existe pas
+     */
+    public EditScript diffRevisions(String targetFileName, int from, int to) throws RemoteException, FileNotFoundException;
+
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Gwénolé Lecorvé.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package enshare.server;
+
+import document.DocumentFactory;
+import document.DocumentInterface;
+import document.DocumentPatch;
+import enshare.client.RemoteControllerInterface;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Mesure du débit de sauvegardes d'un serveur selon le nombre de documents
+ * modifiés en même temps
+ * <p>
+ * Chaque document a un client écrivain, qui le sauvegarde en boucle, et des
+ * clients lecteurs, qui reçoivent chaque nouvelle version avec un temps de
+ * réponse simulé. Les documents étant verrouillés séparément, le débit doit
+ * croître avec le nombre de documents.</p>
+ * <p>
+ * Usage (mêmes options RMI que le serveur):
+ * <code>java -Djava.security.policy=./security.policy
+ * enshare.server.ServerThroughputBenchmark port répertoire [documents]
+ * [lecteurs] [latence] [durée]</code></p>
+ *
+ * @author Gwénolé Lecorvé
+ */
+public class ServerThroughputBenchmark {
+
+    /**
+     * Client simulé, qui met un temps fixe à recevoir chaque version
+     */
+    static class Client implements RemoteControllerInterface {
+
+        private final long latency;
+
+        Client(long _latency) {
+            latency = _latency;
+        }
+
+        @Override
+        public void updateDocument(String sourceUrl, DocumentInterface d) throws RemoteException {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean patchDocument(String sourceUrl, DocumentPatch patch) throws RemoteException {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public void notifyDisconnection(String sourceUrl) throws RemoteException {
+            /* Nothing */
+        }
+    }
+
+    /**
+     * Serveur mesuré
+     */
+    private final Server server;
+
+    /**
+     * Registre RMI des clients simulés
+     */
+    private final Registry registry;
+
+    /**
+     * Port du registre
+     */
+    private final int port;
+
+    /**
+     * Nombre de clients simulés créés
+     */
+    private int clients;
+
+    /**
+     * Constructeur
+     * @param _port Port du registre RMI, créé dans ce processus
+     * @param dirName Répertoire des documents (créés si besoin)
+     * @param documents Nombre de documents à créer
+     * @throws IOException Si une erreur survient lors de la création des
+     * documents ou du serveur
+     */
+    public ServerThroughputBenchmark(int _port, String dirName, int documents) throws IOException {
+        port = _port;
+        registry = LocateRegistry.createRegistry(port);
+        new File(dirName).mkdirs();
+        for (int i = 0; i < documents; i++) {
+            PrintWriter out = new PrintWriter(new File(dirName, name(i)), "UTF-8");
+            try {
+                for (int l = 0; l < 100; l++) {
+                    out.println("Ligne " + l + " du document " + i);
+                }
+            } finally {
+                out.close();
+            }
+        }
+        server = new Server("rmi://localhost:" + port + "/benchmark", dirName);
+    }
+
+    private static String name(int document) {
+        return "benchmark-" + document + ".txt";
+    }
+
+    /**
+     * Crée et connecte un client simulé
+     * @return URL du client
+     */
+    private String connect(Client c) throws RemoteException {
+        String clientName = "client-" + (clients++);
+        registry.rebind(clientName, UnicastRemoteObject.exportObject(c, 0));
+        String clientUrl = "rmi://localhost:" + port + "/" + clientName;
+        server.connectNotepad(clientUrl);
+        return clientUrl;
+    }
+
+    /**
+     * Mesure le débit de sauvegardes pour un nombre de documents
+     * @param documents Nombre de documents modifiés en même temps
+     * @param readers Nombre de lecteurs par document
+     * @param latency Temps de réponse des lecteurs (en ms)
+     * @param duration Durée de la mesure (en ms)
+     * @return Nombre de sauvegardes par seconde
+     * @throws Exception Si une erreur survient pendant la mesure
+     */
+    public double run(int documents, int readers, long latency, final long duration) throws Exception {
+        List<String> urls = new ArrayList();
+        List<Thread> threads = new ArrayList();
+        final AtomicLong saves = new AtomicLong();
+        for (int i = 0; i < documents; i++) {
+            final String docName = name(i);
+            for (int r = 0; r < readers; r++) {
+                String readerUrl = connect(new Client(latency));
+                server.getDocument(readerUrl, docName);
+                urls.add(readerUrl);
+            }
+            final String writerUrl = connect(new Client(latency));
+            server.getDocument(writerUrl, docName);
+            if (!server.tryLockDocument(writerUrl, docName)) {
+                throw new IllegalStateException("Document " + docName + " déjà verrouillé");
+            }
+            urls.add(writerUrl);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    DocumentInterface d = DocumentFactory.newDocument();
+                    long end = System.currentTimeMillis() + duration;
+                    for (int n = 0; System.currentTimeMillis() < end; n++) {
+                        d.fromString("Version " + n + " de " + docName);
+                        try {
+                            if (server.saveDocument(writerUrl, docName, d)) {
+                                saves.incrementAndGet();
+                            }
+                        } catch (RemoteException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }
+                }
+            }, "writer-" + i));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        printChannels();
+        for (String clientUrl : urls) {
+            server.disconnectNotepad(clientUrl);
+        }
+        return saves.get() / seconds;
+    }
+
+    /**
+     * Affiche les mesures des files de notifications des clients (voir
+     * {@link ClientChannelMXBean})
+     */
+    private static void printChannels() throws JMException {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        long delivered = 0;
+        long overflowed = 0;
+        long coalesced = 0;
+        long patched = 0;
+        double latency = 0;
+        for (ObjectName n : mbs.queryNames(new ObjectName("enshare:type=ClientChannel,*"), null)) {
+            long d = (Long) mbs.getAttribute(n, "Delivered");
+            delivered += d;
+            overflowed += (Long) mbs.getAttribute(n, "Overflowed");
+            coalesced += (Long) mbs.getAttribute(n, "Coalesced");
+            patched += (Long) mbs.getAttribute(n, "Patched");
+            latency += d * (Double) mbs.getAttribute(n, "AverageLatencyMillis");
+        }
+        System.err.println("notifications reçues: " + delivered + " (dont correctifs: " + patched + "), fusionnées: " + coalesced + ", envoyées entières faute de place: " + overflowed
+                + ", délai moyen: " + String.format("%.1f", delivered == 0 ? 0 : latency / delivered) + " ms");
+    }
+
+    /**
+     * Arrête le serveur
+     */
+    public void close() {
+        server.finalize();
+    }
+
+    /**
+     * Méthode principale
+     * @param args port, répertoire, nombre maximal de documents (16), lecteurs
+     * par document (2), latence des lecteurs en ms (5), durée de chaque mesure
+     * en ms (3000)
+     * @throws Exception Si une erreur survient pendant la mesure
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java <RMI_options> enshare.server.ServerThroughputBenchmark <port> <directory> [documents] [readers] [latency_ms] [duration_ms]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int documents = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int readers = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        long latency = args.length > 4 ? Long.parseLong(args[4]) : 5;
+        long duration = args.length > 5 ? Long.parseLong(args[5]) : 3000;
+        ServerThroughputBenchmark benchmark = new ServerThroughputBenchmark(port, args[1], documents);
+        try {
+            System.out.println("documents\tsauvegardes/s");
+            for (int n = 1; n <= documents; n *= 2) {
+                System.out.println(n + "\t" + String.format("%.1f", benchmark.run(n, readers, latency, duration)));
+            }
+        } finally {
+            benchmark.close();
+        }
+        System.exit(0);
+    }
+
+}